@@ -1,6 +1,7 @@
 plugins {
     id("java")
     id("org.jetbrains.intellij") version "1.15.0"
+    id("me.champeau.jmh") version "0.6.8"
 }
 
 group = "net.cicchiello.intellij.settings"
@@ -25,6 +26,18 @@ dependencies {
     annotationProcessor ("org.projectlombok:lombok:1.18.32")
 }
 
+// The benchmarks run outside of the IDE but need the platform jars the plugin is compiled against
+configurations.named("jmhImplementation") {
+    extendsFrom(configurations.testImplementation.get())
+}
+
+// Run with ./gradlew jmh, results are written to build/reports/jmh/results.json
+jmh {
+    jmhVersion.set("1.37")
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("reports/jmh/results.json"))
+}
+
 tasks {
     // Set the JVM compatibility versions
     withType<JavaCompile> {
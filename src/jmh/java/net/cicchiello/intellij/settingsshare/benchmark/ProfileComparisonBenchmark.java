@@ -0,0 +1,64 @@
+package net.cicchiello.intellij.settingsshare.benchmark;
+
+import com.intellij.openapi.util.JDOMUtil;
+import net.cicchiello.intellij.settingsshare.service.ContentDigest;
+import net.cicchiello.intellij.settingsshare.service.ProfileScanner;
+import org.jdom.JDOMException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Deciding whether a profile file that changed matches the installed profile, starting from the bytes read from the
+// repository. ProfileSyncedSetting first streams the file through ProfileScanner, the DOM is only built for files the
+// scan couldn't rule out. Loading the scheme itself needs a running IDE and isn't covered here
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProfileComparisonBenchmark {
+
+    @Param({"codestyle", "inspection"})
+    public String kind;
+
+    @Param({"SMALL", "MEDIUM", "LARGE", "VERY_LARGE"})
+    public ProfileCorpus.Size size;
+
+    private byte[] content;
+    private String installedDigest;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, JDOMException {
+        final String xml = "codestyle".equals(kind)
+                ? ProfileCorpus.codeStyleXml("Benchmark", size)
+                : ProfileCorpus.inspectionXml("Benchmark", size);
+        content = xml.getBytes(StandardCharsets.UTF_8);
+        // The digest of the installed profile is memoized, so only the file's side is computed per sync
+        installedDigest = ContentDigest.elementDigest(JDOMUtil.load(xml));
+    }
+
+    @Benchmark
+    public boolean preScanCompare() throws IOException {
+        return ProfileScanner.scan(new ByteArrayInputStream(content)).digest().equals(installedDigest);
+    }
+
+    @Benchmark
+    public boolean domDigestCompare() throws IOException, JDOMException {
+        return ContentDigest.elementDigest(JDOMUtil.load(new ByteArrayInputStream(content))).equals(installedDigest);
+    }
+}
@@ -0,0 +1,97 @@
+package net.cicchiello.intellij.settingsshare.benchmark;
+
+import org.apache.commons.io.file.PathUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+// Generates a repository layout like the one the plugin syncs, with profiles ranging from a handful of options to the
+// size of a full inspection profile
+public final class ProfileCorpus {
+
+    public static final String CODESTYLE_FOLDER = "codestyles";
+    public static final String INSPECTION_FOLDER = "inspection";
+    public static final String ENFORCED_PROPERTIES_FILE = "enforced.properties";
+
+    public enum Size {
+        SMALL(20),
+        MEDIUM(200),
+        LARGE(2_000),
+        VERY_LARGE(10_000);
+
+        private final int entries;
+
+        Size(final int entries) {
+            this.entries = entries;
+        }
+
+        public int getEntries() {
+            return entries;
+        }
+    }
+
+    private ProfileCorpus() {
+    }
+
+    // Writes profileCount code style and profileCount inspection profiles, cycling through every size
+    public static Path generate(final int profileCount) throws IOException {
+        final Path root = Files.createTempDirectory("shared-settings-corpus");
+        final Path codeStyles = Files.createDirectories(root.resolve(CODESTYLE_FOLDER));
+        final Path inspections = Files.createDirectories(root.resolve(INSPECTION_FOLDER));
+        final Size[] sizes = Size.values();
+        for (int i = 0; i < profileCount; i++) {
+            final Size size = sizes[i % sizes.length];
+            final String name = String.format("Profile%03d", i);
+            Files.writeString(codeStyles.resolve(name + ".xml"), codeStyleXml(name, size), StandardCharsets.UTF_8);
+            Files.writeString(inspections.resolve(name + ".xml"), inspectionXml(name, size), StandardCharsets.UTF_8);
+        }
+        Files.writeString(root.resolve(ENFORCED_PROPERTIES_FILE), enforcedProperties("Profile000"), StandardCharsets.UTF_8);
+        return root;
+    }
+
+    public static void delete(final Path root) throws IOException {
+        if (root != null && Files.exists(root)) {
+            PathUtils.deleteDirectory(root);
+        }
+    }
+
+    public static String codeStyleXml(final String name, final Size size) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("<code_scheme name=\"").append(name).append("\" version=\"173\">\n");
+        final int languages = Math.max(1, size.getEntries() / 100);
+        final int optionsPerLanguage = size.getEntries() / languages;
+        for (int l = 0; l < languages; l++) {
+            sb.append("  <codeStyleSettings language=\"LANG").append(l).append("\">\n");
+            for (int o = 0; o < optionsPerLanguage; o++) {
+                sb.append("    <option name=\"OPTION_").append(o).append("\" value=\"").append((o + l) % 7).append("\" />\n");
+            }
+            sb.append("  </codeStyleSettings>\n");
+        }
+        sb.append("</code_scheme>\n");
+        return sb.toString();
+    }
+
+    public static String inspectionXml(final String name, final Size size) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("<profile version=\"1.0\">\n");
+        sb.append("  <option name=\"myName\" value=\"").append(name).append("\" />\n");
+        for (int i = 0; i < size.getEntries(); i++) {
+            sb.append("  <inspection_tool class=\"Inspection").append(i)
+                    .append("\" enabled=\"").append(i % 3 != 0)
+                    .append("\" level=\"").append(i % 2 == 0 ? "WARNING" : "WEAK WARNING")
+                    .append("\" enabled_by_default=\"").append(i % 3 != 0).append("\">\n");
+            if (i % 4 == 0) {
+                sb.append("    <option name=\"m_option").append(i).append("\" value=\"true\" />\n");
+            }
+            sb.append("  </inspection_tool>\n");
+        }
+        sb.append("</profile>\n");
+        return sb.toString();
+    }
+
+    public static String enforcedProperties(final String profileName) {
+        return INSPECTION_FOLDER + "=" + profileName + "\n" + CODESTYLE_FOLDER + "=" + profileName + "\n";
+    }
+}
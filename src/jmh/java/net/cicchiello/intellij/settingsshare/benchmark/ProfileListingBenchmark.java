@@ -0,0 +1,66 @@
+package net.cicchiello.intellij.settingsshare.benchmark;
+
+import net.cicchiello.intellij.settingsshare.service.ContentDigest;
+import net.cicchiello.intellij.settingsshare.service.ProfileSource;
+import net.cicchiello.intellij.settingsshare.service.WorktreeProfileSource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// The part of an import that runs for every profile file whether it changed or not: listing the profiles, reading
+// them and computing the digest that is looked up in the profile index
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProfileListingBenchmark {
+
+    @Param({"10", "100", "500"})
+    public int profileCount;
+
+    private Path root;
+    private ProfileSource source;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        root = ProfileCorpus.generate(profileCount);
+        source = new WorktreeProfileSource(root);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        ProfileCorpus.delete(root);
+    }
+
+    @Benchmark
+    public void listProfiles(final Blackhole blackhole) throws IOException {
+        blackhole.consume(source.listFiles(ProfileCorpus.CODESTYLE_FOLDER));
+        blackhole.consume(source.listFiles(ProfileCorpus.INSPECTION_FOLDER));
+    }
+
+    @Benchmark
+    public void readAndDigestProfiles(final Blackhole blackhole) throws IOException {
+        for (final String folder : new String[]{ProfileCorpus.CODESTYLE_FOLDER, ProfileCorpus.INSPECTION_FOLDER}) {
+            for (final String fileName : source.listFiles(folder)) {
+                blackhole.consume(ContentDigest.gitBlobHash(source.readFile(folder + "/" + fileName)));
+            }
+        }
+    }
+}
@@ -8,6 +8,10 @@ import com.intellij.util.xmlb.XmlSerializerUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
 @State(
         name = "net.cicchiello.intellij.settingsshare.AppSettingState",
         storages = @Storage("settingsShare.xml")
@@ -16,7 +20,18 @@ public class AppSettingsState implements PersistentStateComponent<AppSettingsSta
 
     public String repositoryUrl;
     public String branch;
+    // Applied on top of the repository above in order, later repositories override profiles and enforced settings of
+    // earlier ones
+    public List<OverlayRepository> overlayRepositories = new ArrayList<>();
     public boolean enforceSettings = true;
+    public boolean shallowClone = true;
+    public boolean readFromObjectStore = false;
+    public int importParallelism = Math.min(4, Runtime.getRuntime().availableProcessors());
+    // Git commands are stopped after these many seconds so a hung remote doesn't block every later sync
+    public int fetchTimeoutSeconds = 300;
+    public int remoteQueryTimeoutSeconds = 60;
+    public int localGitTimeoutSeconds = 60;
+    public String lastAppliedCommit;
 
     public static AppSettingsState getInstance() {
         return ApplicationManager.getApplication().getService(AppSettingsState.class);
@@ -31,4 +46,28 @@ public class AppSettingsState implements PersistentStateComponent<AppSettingsSta
     public void loadState(@NotNull final AppSettingsState state) {
         XmlSerializerUtil.copyBean(state, this);
     }
+
+    public static class OverlayRepository {
+
+        public String url;
+        public String branch;
+
+        public OverlayRepository() {
+        }
+
+        public OverlayRepository(final String url, final String branch) {
+            this.url = url;
+            this.branch = branch;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return o instanceof OverlayRepository other && Objects.equals(url, other.url) && Objects.equals(branch, other.branch);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(url, branch);
+        }
+    }
 }
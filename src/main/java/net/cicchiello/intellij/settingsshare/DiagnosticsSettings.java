@@ -0,0 +1,110 @@
+package net.cicchiello.intellij.settingsshare;
+
+import com.intellij.openapi.options.Configurable;
+import com.intellij.ui.components.JBScrollPane;
+import com.intellij.ui.table.JBTable;
+import com.intellij.util.ui.GridBag;
+import net.cicchiello.intellij.settingsshare.action.SettingChangeQueue;
+import net.cicchiello.intellij.settingsshare.service.GitRepoService;
+import net.cicchiello.intellij.settingsshare.service.PhaseStatistics;
+import net.cicchiello.intellij.settingsshare.service.SyncMetrics;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.Box;
+import javax.swing.JButton;
+import javax.swing.JComponent;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.table.DefaultTableModel;
+import java.awt.GridBagLayout;
+
+// Read only page showing how long each phase of syncing shared settings took, to find out what is slow on a machine
+public class DiagnosticsSettings implements Configurable {
+
+    private static final String[] COLUMNS = {"Phase", "Count", "Last (ms)", "p50 (ms)", "p90 (ms)", "p99 (ms)", "Max (ms)", "Total (ms)"};
+
+    private JPanel mainComponent;
+    private DefaultTableModel tableModel;
+    private JLabel gitProcessLabel;
+    private JLabel settingEventsLabel;
+
+    @Override
+    public String getDisplayName() {
+        return "Shared Settings Diagnostics";
+    }
+
+    @Override
+    public @Nullable JComponent createComponent() {
+        if (mainComponent == null) {
+            mainComponent = new JPanel(new GridBagLayout());
+            final GridBag mainGridBag = new GridBag();
+
+            tableModel = new DefaultTableModel(COLUMNS, 0) {
+                @Override
+                public boolean isCellEditable(final int row, final int column) {
+                    return false;
+                }
+            };
+            final JBTable table = new JBTable(tableModel);
+            mainComponent.add(new JBScrollPane(table), mainGridBag.nextLine().next().fillCell().weightx(1).weighty(1));
+
+            final JPanel footerPanel = new JPanel(new GridBagLayout());
+            mainComponent.add(footerPanel, mainGridBag.nextLine().next().fillCellHorizontally().weightx(1));
+            final GridBag footerGridBag = new GridBag();
+            gitProcessLabel = new JLabel();
+            footerPanel.add(gitProcessLabel, footerGridBag.nextLine().next());
+            settingEventsLabel = new JLabel();
+            footerPanel.add(settingEventsLabel, footerGridBag.next().insetLeft(16));
+            footerPanel.add(Box.createHorizontalGlue(), footerGridBag.next().fillCellHorizontally().weightx(1));
+            final JButton refreshButton = new JButton("Refresh");
+            refreshButton.addActionListener(e -> reset());
+            footerPanel.add(refreshButton, footerGridBag.next());
+            final JButton clearButton = new JButton("Clear Statistics");
+            clearButton.addActionListener(e -> {
+                SyncMetrics.getInstance().reset();
+                reset();
+            });
+            footerPanel.add(clearButton, footerGridBag.next());
+        }
+        return mainComponent;
+    }
+
+    @Override
+    public boolean isModified() {
+        return false;
+    }
+
+    @Override
+    public void apply() {
+    }
+
+    @Override
+    public void reset() {
+        tableModel.setRowCount(0);
+        for (final PhaseStatistics statistics : SyncMetrics.getInstance().getStatistics()) {
+            tableModel.addRow(new Object[]{
+                    statistics.phase().getDisplayName(),
+                    statistics.count(),
+                    formatMillis(statistics.lastMillis()),
+                    formatMillis(statistics.p50Millis()),
+                    formatMillis(statistics.p90Millis()),
+                    formatMillis(statistics.p99Millis()),
+                    formatMillis(statistics.maxMillis()),
+                    formatMillis(statistics.totalMillis())
+            });
+        }
+        gitProcessLabel.setText(String.format("Git processes started: %d", GitRepoService.getInstance().getGitProcessCount()));
+        final SettingChangeQueue changeQueue = SettingChangeQueue.getInstance();
+        settingEventsLabel.setText(String.format("Setting change events: %d received, %d collapsed, %d enforcement passes",
+                changeQueue.getReceivedEvents(), changeQueue.getCollapsedEvents(), changeQueue.getEnforcementPasses()));
+    }
+
+    @Override
+    public void disposeUIResources() {
+        mainComponent = null;
+    }
+
+    private static String formatMillis(final double millis) {
+        return String.format("%.1f", millis);
+    }
+}
@@ -5,6 +5,7 @@ import com.intellij.notification.NotificationGroupManager;
 import com.intellij.notification.NotificationType;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.options.Configurable;
+import com.intellij.openapi.options.ConfigurationException;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.progress.Task;
@@ -12,6 +13,9 @@ import com.intellij.openapi.project.Project;
 import com.intellij.openapi.project.ProjectManager;
 import com.intellij.openapi.ui.ComboBox;
 import com.intellij.ui.DocumentAdapter;
+import com.intellij.ui.JBIntSpinner;
+import com.intellij.ui.components.JBScrollPane;
+import com.intellij.ui.components.JBTextArea;
 import com.intellij.util.ui.GridBag;
 import net.cicchiello.intellij.settingsshare.action.SyncSettingsTask;
 import net.cicchiello.intellij.settingsshare.service.GitRepoService;
@@ -27,14 +31,19 @@ import javax.swing.JPanel;
 import javax.swing.JTextField;
 import javax.swing.event.DocumentEvent;
 import java.awt.EventQueue;
+import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 public class PluginSettings implements Configurable, ActionListener {
 
@@ -42,7 +51,14 @@ public class PluginSettings implements Configurable, ActionListener {
     private JTextField repoField;
     private JButton getBranchesButton;
     private ComboBox<String> branchSelector;
+    private JBTextArea overlayArea;
     private JCheckBox enforceCheckBox;
+    private JCheckBox shallowCloneCheckBox;
+    private JCheckBox objectStoreCheckBox;
+    private JBIntSpinner parallelismSpinner;
+    private JBIntSpinner fetchTimeoutSpinner;
+    private JBIntSpinner remoteQueryTimeoutSpinner;
+    private JBIntSpinner localGitTimeoutSpinner;
     private String initialUrl;
 
     @Override
@@ -85,6 +101,15 @@ public class PluginSettings implements Configurable, ActionListener {
             branchPanel.add(branchSelector, branchGridBag.next());
             branchPanel.add(Box.createHorizontalGlue(), branchGridBag.next().fillCellHorizontally().weightx(1));
 
+            final JPanel overlayPanel = new JPanel(new GridBagLayout());
+            mainComponent.add(overlayPanel, mainGridBag.nextLine().next().fillCellHorizontally().weightx(1));
+            final GridBag overlayGridBag = new GridBag();
+            final JLabel overlayLabel = new JLabel("Overlay repositories, one \"<url> <branch>\" per line. Later repositories override earlier ones:");
+            overlayPanel.add(overlayLabel, overlayGridBag.nextLine().next().anchor(GridBagConstraints.WEST));
+            overlayArea = new JBTextArea(3, 0);
+            overlayPanel.add(new JBScrollPane(overlayArea), overlayGridBag.nextLine().next().fillCellHorizontally().weightx(1));
+            overlayLabel.setLabelFor(overlayArea);
+
             final JPanel enforcePanel = new JPanel(new GridBagLayout());
             mainComponent.add(enforcePanel, mainGridBag.nextLine().next().fillCellHorizontally().weightx(1));
             final GridBag enforceGridBag = new GridBag();
@@ -93,6 +118,33 @@ public class PluginSettings implements Configurable, ActionListener {
             enforcePanel.add(enforceCheckBox, enforceGridBag.nextLine().next());
             enforcePanel.add(Box.createHorizontalGlue(), enforceGridBag.next().fillCellHorizontally().weightx(1));
 
+            final JPanel clonePanel = new JPanel(new GridBagLayout());
+            mainComponent.add(clonePanel, mainGridBag.nextLine().next().fillCellHorizontally().weightx(1));
+            final GridBag cloneGridBag = new GridBag();
+            shallowCloneCheckBox = new JCheckBox("Only download the selected branch and shared settings files");
+            clonePanel.add(shallowCloneCheckBox, cloneGridBag.nextLine().next());
+            clonePanel.add(Box.createHorizontalGlue(), cloneGridBag.next().fillCellHorizontally().weightx(1));
+            objectStoreCheckBox = new JCheckBox("Read shared settings straight from git without checking them out");
+            clonePanel.add(objectStoreCheckBox, cloneGridBag.nextLine().next());
+            clonePanel.add(Box.createHorizontalGlue(), cloneGridBag.next().fillCellHorizontally().weightx(1));
+
+            final JPanel parallelismPanel = new JPanel(new GridBagLayout());
+            mainComponent.add(parallelismPanel, mainGridBag.nextLine().next().fillCellHorizontally().weightx(1));
+            final GridBag parallelismGridBag = new GridBag();
+            final JLabel parallelismLabel = new JLabel("Profile import threads: ");
+            parallelismPanel.add(parallelismLabel, parallelismGridBag.nextLine().next());
+            parallelismSpinner = new JBIntSpinner(1, 1, 32);
+            parallelismPanel.add(parallelismSpinner, parallelismGridBag.next());
+            parallelismLabel.setLabelFor(parallelismSpinner);
+            parallelismPanel.add(Box.createHorizontalGlue(), parallelismGridBag.next().fillCellHorizontally().weightx(1));
+
+            final JPanel timeoutPanel = new JPanel(new GridBagLayout());
+            mainComponent.add(timeoutPanel, mainGridBag.nextLine().next().fillCellHorizontally().weightx(1));
+            final GridBag timeoutGridBag = new GridBag();
+            fetchTimeoutSpinner = addTimeoutSpinner(timeoutPanel, timeoutGridBag, "Clone and fetch timeout (seconds): ");
+            remoteQueryTimeoutSpinner = addTimeoutSpinner(timeoutPanel, timeoutGridBag, "Remote branch lookup timeout (seconds): ");
+            localGitTimeoutSpinner = addTimeoutSpinner(timeoutPanel, timeoutGridBag, "Local git command timeout (seconds): ");
+
             mainComponent.add(Box.createVerticalGlue(), mainGridBag.nextLine().next().weighty(1));
         }
         return mainComponent;
@@ -103,16 +155,48 @@ public class PluginSettings implements Configurable, ActionListener {
         final AppSettingsState state = AppSettingsState.getInstance();
         return (repoField.getText().isBlank() && state.repositoryUrl != null)
                 || (branchSelector.isEnabled() && (!Objects.equals(state.branch, branchSelector.getItem()) || !Objects.equals(state.repositoryUrl, repoField.getText()) || state.enforceSettings != enforceCheckBox.isSelected()))
-                || (Objects.equals(state.branch, branchSelector.getItem()) && Objects.equals(state.repositoryUrl, repoField.getText()) && state.enforceSettings != enforceCheckBox.isSelected());
+                || (Objects.equals(state.branch, branchSelector.getItem()) && Objects.equals(state.repositoryUrl, repoField.getText()) && state.enforceSettings != enforceCheckBox.isSelected())
+                || !parseOverlays(overlayArea.getText()).equals(state.overlayRepositories)
+                || state.shallowClone != shallowCloneCheckBox.isSelected()
+                || state.readFromObjectStore != objectStoreCheckBox.isSelected()
+                || state.importParallelism != parallelismSpinner.getNumber()
+                || state.fetchTimeoutSeconds != fetchTimeoutSpinner.getNumber()
+                || state.remoteQueryTimeoutSeconds != remoteQueryTimeoutSpinner.getNumber()
+                || state.localGitTimeoutSeconds != localGitTimeoutSpinner.getNumber();
     }
 
     @Override
-    public void apply() {
+    public void apply() throws ConfigurationException {
         final AppSettingsState state = AppSettingsState.getInstance();
+        final List<AppSettingsState.OverlayRepository> overlays = parseOverlays(overlayArea.getText());
+        final Optional<AppSettingsState.OverlayRepository> invalid = overlays.stream()
+                .filter(overlay -> overlay.branch == null)
+                .findAny();
+        if (invalid.isPresent()) {
+            throw new ConfigurationException(String.format("Overlay repository %s needs a branch, e.g. \"%s origin/main\"", invalid.get().url, invalid.get().url));
+        }
+        final Set<AppSettingsState.OverlayRepository> seen = new HashSet<>();
+        for (final AppSettingsState.OverlayRepository overlay : overlays) {
+            if (!seen.add(overlay)) {
+                throw new ConfigurationException(String.format("Overlay repository %s %s is listed more than once", overlay.url, overlay.branch));
+            }
+        }
         final String url = repoField.getText();
+        final String previousUrl = state.repositoryUrl;
+        final String previousBranch = state.branch;
         state.repositoryUrl = url.isBlank() ? null : url;
         state.branch = state.repositoryUrl == null ? null : (String) branchSelector.getSelectedItem();
+        if (!Objects.equals(previousUrl, state.repositoryUrl) || !Objects.equals(previousBranch, state.branch)) {
+            state.lastAppliedCommit = null;
+        }
+        state.overlayRepositories = overlays;
         state.enforceSettings = enforceCheckBox.isSelected();
+        state.shallowClone = shallowCloneCheckBox.isSelected();
+        state.readFromObjectStore = objectStoreCheckBox.isSelected();
+        state.importParallelism = parallelismSpinner.getNumber();
+        state.fetchTimeoutSeconds = fetchTimeoutSpinner.getNumber();
+        state.remoteQueryTimeoutSeconds = remoteQueryTimeoutSpinner.getNumber();
+        state.localGitTimeoutSeconds = localGitTimeoutSpinner.getNumber();
         initialUrl = state.repositoryUrl;
         if (state.branch == null) {
             branchSelector.removeAllItems();
@@ -138,7 +222,16 @@ public class PluginSettings implements Configurable, ActionListener {
             branchSelector.addItem(state.branch);
             branchSelector.setSelectedItem(state.branch);
         }
+        overlayArea.setText(state.overlayRepositories.stream()
+                .map(overlay -> overlay.url + " " + overlay.branch)
+                .collect(Collectors.joining("\n")));
         enforceCheckBox.setSelected(state.enforceSettings);
+        shallowCloneCheckBox.setSelected(state.shallowClone);
+        objectStoreCheckBox.setSelected(state.readFromObjectStore);
+        parallelismSpinner.setNumber(state.importParallelism);
+        fetchTimeoutSpinner.setNumber(state.fetchTimeoutSeconds);
+        remoteQueryTimeoutSpinner.setNumber(state.remoteQueryTimeoutSeconds);
+        localGitTimeoutSpinner.setNumber(state.localGitTimeoutSeconds);
         initialUrl = null;
     }
 
@@ -149,6 +242,11 @@ public class PluginSettings implements Configurable, ActionListener {
 
     @Override
     public void actionPerformed(final ActionEvent e) {
+        loadBranches(repoField.getText());
+    }
+
+    // Only on request, the remote is never contacted just because the page was opened or reset
+    private void loadBranches(final String url) {
         final GitRepoService service = ApplicationManager.getApplication().getService(GitRepoService.class);
         final Optional<Project> maybeProject = Arrays.stream(ProjectManager.getInstance().getOpenProjects())
                 .filter(p -> !p.isDisposed())
@@ -159,13 +257,12 @@ public class PluginSettings implements Configurable, ActionListener {
         final Project project = maybeProject.get();
         getBranchesButton.setEnabled(false);
         repoField.setEnabled(false);
-        final String url = repoField.getText();
-        final Task.Modal modal = new Task.Modal(project, mainComponent, "Getting Branches from Git Repository", false) {
+        final Task.Backgroundable task = new Task.Backgroundable(project, "Getting branches from git repository", true) {
             @Override
             public void run(@NotNull final ProgressIndicator indicator) {
                 try {
                     final List<String> branches = service.getBranches(project, url);
-                    updateBranches(branches);
+                    updateBranches(url, branches);
                 } catch (final IOException ex) {
                     NotificationGroupManager.getInstance()
                             .getNotificationGroup("net.cicchiello.intellij.settingsshare")
@@ -173,18 +270,48 @@ public class PluginSettings implements Configurable, ActionListener {
                             .notify(project);
                 } finally {
                     EventQueue.invokeLater(() -> {
+                        if (mainComponent == null) {
+                            return;
+                        }
                         getBranchesButton.setEnabled(true);
                         repoField.setEnabled(true);
                     });
                 }
             }
         };
-        ApplicationManager.getApplication().invokeLater(() -> ProgressManager.getInstance().run(modal));
+        ProgressManager.getInstance().run(task);
     }
 
-    private void updateBranches(final List<String> branches) {
+    private static JBIntSpinner addTimeoutSpinner(final JPanel panel, final GridBag gridBag, final String text) {
+        final JLabel label = new JLabel(text);
+        panel.add(label, gridBag.nextLine().next().anchor(GridBagConstraints.WEST));
+        final JBIntSpinner spinner = new JBIntSpinner(60, 1, 3600);
+        panel.add(spinner, gridBag.next());
+        label.setLabelFor(spinner);
+        panel.add(Box.createHorizontalGlue(), gridBag.next().fillCellHorizontally().weightx(1));
+        return spinner;
+    }
+
+    // Lines without a branch are kept with a null branch so apply can report them
+    private static List<AppSettingsState.OverlayRepository> parseOverlays(final String text) {
+        final List<AppSettingsState.OverlayRepository> overlays = new ArrayList<>();
+        for (final String line : text.split("\n")) {
+            final String[] parts = line.trim().split("\\s+");
+            if (parts[0].isEmpty()) {
+                continue;
+            }
+            overlays.add(new AppSettingsState.OverlayRepository(parts[0], parts.length > 1 ? parts[1] : null));
+        }
+        return overlays;
+    }
+
+    private void updateBranches(final String url, final List<String> branches) {
         final AppSettingsState state = AppSettingsState.getInstance();
         EventQueue.invokeLater(() -> {
+            // The page may have been closed or pointed at another repository while the branches were loading
+            if (mainComponent == null || !url.equals(repoField.getText())) {
+                return;
+            }
             branchSelector.removeAllItems();
             branches.forEach(branchSelector::addItem);
             branchSelector.setEnabled(branches.size() > 0);
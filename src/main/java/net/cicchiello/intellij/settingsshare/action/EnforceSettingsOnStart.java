@@ -3,6 +3,8 @@ package net.cicchiello.intellij.settingsshare.action;
 import com.intellij.notification.NotificationGroupManager;
 import com.intellij.notification.NotificationType;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.project.ProjectManager;
@@ -11,8 +13,13 @@ import kotlin.Unit;
 import kotlin.coroutines.Continuation;
 import lombok.NonNull;
 import net.cicchiello.intellij.settingsshare.AppSettingsState;
+import net.cicchiello.intellij.settingsshare.diagnostics.SettingChangedEvent;
+import net.cicchiello.intellij.settingsshare.service.EnforcementRules;
 import net.cicchiello.intellij.settingsshare.service.GitRepoService;
 import net.cicchiello.intellij.settingsshare.service.ProfileUpdateService;
+import net.cicchiello.intellij.settingsshare.service.SyncCoordinator;
+import net.cicchiello.intellij.settingsshare.service.SyncResult;
+import net.cicchiello.intellij.settingsshare.settings.ProfileImport;
 import net.cicchiello.intellij.settingsshare.settings.SyncedSetting;
 import org.apache.commons.lang3.StringUtils;
 import org.jetbrains.annotations.NotNull;
@@ -22,53 +29,101 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class EnforceSettingsOnStart implements ProjectActivity, SettingChangedListener {
 
+    private static final Logger log = Logger.getInstance(EnforceSettingsOnStart.class);
+
     @Nullable
     @Override
     public Object execute(@NotNull final Project project, @NotNull final Continuation<? super Unit> continuation) {
         if (AppSettingsState.getInstance().enforceSettings) {
-            final SyncSettingsTask task = new SyncSettingsTask(ProjectManager.getInstance().getOpenProjects(), project, true);
+            // Enforce from the local copy straight away and only go to the remote once per IDE session, or when the
+            // background prefetch found commits that haven't been applied yet. Those are already fetched, so applying
+            // them doesn't wait for the network
+            final boolean syncRemote = SyncCoordinator.getInstance().claimSessionRefresh() || hasFetchedUpdate();
+            final SyncSettingsTask task = SyncSettingsTask.onStartup(ProjectManager.getInstance().getOpenProjects(), project, syncRemote);
             ApplicationManager.getApplication().invokeLater(() -> ProgressManager.getInstance().run(task));
         }
         ProfileUpdateService.getInstance().addEnforcementListeners(project, this);
+        GitRepoService.getInstance().startBackgroundPrefetch();
         return null;
     }
 
+    private static boolean hasFetchedUpdate() {
+        final AppSettingsState state = AppSettingsState.getInstance();
+        if (state.repositoryUrl == null || state.branch == null) {
+            return false;
+        }
+        try {
+            return GitRepoService.getInstance().hasFetchedUpdate(state.repositoryUrl, state.branch);
+        } catch (final IOException e) {
+            log.info("Failed to check for prefetched shared settings", e);
+            return false;
+        }
+    }
+
     @Override
     public void settingChanged(@NonNull final SyncedSetting setting, @NonNull final Project project) {
+        final SettingChangedEvent event = new SettingChangedEvent();
+        if (event.isEnabled()) {
+            event.setting = setting.getHumanName();
+            event.project = project.getName();
+            event.dispatchThread = ApplicationManager.getApplication().isDispatchThread();
+            event.commit();
+        }
         if (!AppSettingsState.getInstance().enforceSettings) {
             return;
         }
-        ApplicationManager.getApplication().invokeLater(() -> {
-            try {
-                final Optional<Path> maybePath = GitRepoService.getInstance().getRepositoryPath();
-                if (maybePath.isEmpty()) {
+        SettingChangeQueue.getInstance().queue(setting, project, () -> enforceChangedSetting(setting, project));
+    }
+
+    // Runs on a pooled thread. Everything except the changes to the installed profiles happens on this thread
+    private void enforceChangedSetting(final SyncedSetting setting, final Project project) {
+        final ProfileUpdateService profileService = ProfileUpdateService.getInstance();
+        try {
+            // The profiles as they were last synced, which are the merged layers when overlays are configured
+            final Optional<SyncResult> snapshot = SyncCoordinator.getInstance().getLocalSnapshot();
+            if (snapshot.isEmpty()) {
+                return;
+            }
+            final Path path = snapshot.get().path();
+            final List<ProfileImport> changedProfiles = profileService.prepareProfiles(setting, path, true);
+            final EnforcementRules rules = profileService.getEnforcementRules(path);
+            final AtomicReference<Optional<String>> enforced = new AtomicReference<>(Optional.empty());
+            // Waits for the Settings dialog to close, like the installs of a sync
+            ApplicationManager.getApplication().invokeAndWait(() -> {
+                if (project.isDisposed()) {
                     return;
                 }
-                final Path path = maybePath.get();
-                final List<String> enforcedProfiles = setting.updateProfilesFromPath(path, project);
-                final Optional<String> maybeEnforced = ProfileUpdateService.getInstance().enforceSetting(setting, project, path);
-                final StringBuilder sb = new StringBuilder("<b>Enforced modified settings</b>");
-                if (!enforcedProfiles.isEmpty()) {
-                    sb.append("<br/>Imported ").append(setting.getHumanName()).append(" profiles: <b>").append(StringUtils.join(enforcedProfiles, ", ")).append("</b>");
-                }
-                maybeEnforced.ifPresent(message -> sb.append("<br/>Enforced ").append(setting.getHumanName()).append(" setting: <b>").append(message).append("</b>"));
-                if (maybeEnforced.isPresent() || !enforcedProfiles.isEmpty()) {
-                    NotificationGroupManager.getInstance()
-                            .getNotificationGroup("net.cicchiello.intellij.settingsshare")
-                            .createNotification(sb.toString(), NotificationType.WARNING)
-                            .addAction(new ShowSettingsAction())
-                            .notify(project);
-                }
-            } catch (final IOException e) {
+                changedProfiles.forEach(ProfileImport::install);
+                enforced.set(profileService.enforceSetting(setting, project, rules));
+            }, ModalityState.NON_MODAL);
+            profileService.persistProfiles(changedProfiles);
+
+            final List<String> enforcedProfiles = changedProfiles.stream()
+                    .map(ProfileImport::getProfileName)
+                    .toList();
+            final Optional<String> maybeEnforced = enforced.get();
+            final StringBuilder sb = new StringBuilder("<b>Enforced modified settings</b>");
+            if (!enforcedProfiles.isEmpty()) {
+                sb.append("<br/>Imported ").append(setting.getHumanName()).append(" profiles: <b>").append(StringUtils.join(enforcedProfiles, ", ")).append("</b>");
+            }
+            maybeEnforced.ifPresent(message -> sb.append("<br/>Enforced ").append(setting.getHumanName()).append(" setting: <b>").append(message).append("</b>"));
+            if (maybeEnforced.isPresent() || !enforcedProfiles.isEmpty()) {
                 NotificationGroupManager.getInstance()
                         .getNotificationGroup("net.cicchiello.intellij.settingsshare")
-                        .createNotification(String.format("Failed to enforce setting %s: %s", setting.getHumanName(), e.getMessage()), NotificationType.ERROR)
+                        .createNotification(sb.toString(), NotificationType.WARNING)
+                        .addAction(new ShowSettingsAction())
                         .notify(project);
             }
-        });
+        } catch (final IOException e) {
+            NotificationGroupManager.getInstance()
+                    .getNotificationGroup("net.cicchiello.intellij.settingsshare")
+                    .createNotification(String.format("Failed to enforce setting %s: %s", setting.getHumanName(), e.getMessage()), NotificationType.ERROR)
+                    .notify(project);
+        }
     }
 
 }
@@ -0,0 +1,70 @@
+package net.cicchiello.intellij.settingsshare.action;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.util.Alarm;
+import com.intellij.util.ui.update.MergingUpdateQueue;
+import com.intellij.util.ui.update.Update;
+import lombok.NonNull;
+import net.cicchiello.intellij.settingsshare.settings.SyncedSetting;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class SettingChangeQueue implements Disposable {
+
+    private static final Logger log = Logger.getInstance(SettingChangeQueue.class);
+    public static final int DEBOUNCE_MILLIS = 300;
+
+    private final MergingUpdateQueue queue = new MergingUpdateQueue("Shared Settings Enforcement", DEBOUNCE_MILLIS, true, null, this, null, Alarm.ThreadToUse.POOLED_THREAD);
+    private final AtomicLong receivedEvents = new AtomicLong();
+    private final AtomicLong enforcementPasses = new AtomicLong();
+
+    public SettingChangeQueue() {
+        // Without this a steady stream of events is flushed every DEBOUNCE_MILLIS instead of once it stops
+        queue.setRestartTimerOnAdd(true);
+    }
+
+    public static SettingChangeQueue getInstance() {
+        return ApplicationManager.getApplication().getService(SettingChangeQueue.class);
+    }
+
+    public void queue(@NonNull final SyncedSetting setting, @NonNull final Project project, @NonNull final Runnable enforcement) {
+        receivedEvents.incrementAndGet();
+        // Updates with the same key replace each other until the queue has been quiet for the debounce window, so a
+        // burst of events for one setting and project only results in a single enforcement pass
+        queue.queue(new Update(new EventKey(setting, project)) {
+            @Override
+            public void run() {
+                if (project.isDisposed()) {
+                    return;
+                }
+                enforcementPasses.incrementAndGet();
+                log.debug(String.format("Enforcing %s for %s, %d of %d setting change events collapsed so far",
+                        setting.getHumanName(), project.getName(), getCollapsedEvents(), receivedEvents.get()));
+                enforcement.run();
+            }
+        });
+    }
+
+    public long getReceivedEvents() {
+        return receivedEvents.get();
+    }
+
+    public long getEnforcementPasses() {
+        return enforcementPasses.get();
+    }
+
+    // Includes events that are still waiting for the debounce window to pass
+    public long getCollapsedEvents() {
+        return Math.max(0, receivedEvents.get() - enforcementPasses.get());
+    }
+
+    @Override
+    public void dispose() {
+    }
+
+    private record EventKey(SyncedSetting setting, Project project) {
+    }
+}
@@ -1,31 +1,59 @@
 package net.cicchiello.intellij.settingsshare.action;
 
 import net.cicchiello.intellij.settingsshare.AppSettingsState;
-import net.cicchiello.intellij.settingsshare.service.GitRepoService;
 import net.cicchiello.intellij.settingsshare.service.ProfileUpdateService;
+import net.cicchiello.intellij.settingsshare.service.RemoteUnavailableException;
+import net.cicchiello.intellij.settingsshare.service.SyncCoordinator;
+import net.cicchiello.intellij.settingsshare.service.SyncMetrics;
+import net.cicchiello.intellij.settingsshare.service.SyncPhase;
+import net.cicchiello.intellij.settingsshare.service.SyncResult;
+import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.Multimap;
 import com.intellij.notification.NotificationGroupManager;
 import com.intellij.notification.NotificationType;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.progress.Task;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
 import lombok.NonNull;
 import net.cicchiello.intellij.settingsshare.settings.SyncedSetting;
 import org.apache.commons.lang3.StringUtils;
 import org.jetbrains.annotations.NotNull;
 
-import java.nio.file.Path;
+import java.io.IOException;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 public class SyncSettingsTask extends Task.Backgroundable {
 
+    private static final Logger log = Logger.getInstance(SyncSettingsTask.class);
+    private static final long MIN_REVALIDATION_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
     private final Project[] projects;
     private final boolean quiet;
+    private final boolean enforceLocalSnapshot;
+    private final boolean syncRemote;
 
     public SyncSettingsTask(@NonNull final Project[] projects, @NonNull final Project currentProject, final boolean quiet) {
-        super(currentProject, "Pulling shared settings", false);
+        this(projects, currentProject, quiet, false, true);
+    }
+
+    private SyncSettingsTask(final Project[] projects, final Project currentProject, final boolean quiet, final boolean enforceLocalSnapshot, final boolean syncRemote) {
+        super(currentProject, syncRemote ? "Pulling shared settings" : "Enforcing shared settings", true);
         this.projects = projects;
         this.quiet = quiet;
+        this.enforceLocalSnapshot = enforceLocalSnapshot;
+        this.syncRemote = syncRemote;
+    }
+
+    // Enforces what was synced last time without touching the network, optionally followed by a sync with the remote
+    public static SyncSettingsTask onStartup(@NonNull final Project[] projects, @NonNull final Project currentProject, final boolean syncRemote) {
+        return new SyncSettingsTask(projects, currentProject, true, true, syncRemote);
     }
 
     @Override
@@ -35,20 +63,58 @@ public class SyncSettingsTask extends Task.Backgroundable {
             return;
         }
 
-        final GitRepoService gitService = GitRepoService.getInstance();
-        final ProfileUpdateService profileService = ProfileUpdateService.getInstance();
-        try {
-
-            final Path gitPath = gitService.updateAndCheckoutBranch(getProject(), state.repositoryUrl, state.branch);
-            final Multimap<SyncedSetting, String> importedProfiles = profileService.importGlobalProfilesFromPath(gitPath, getProject());
-
-            for (final Project project : projects) {
-                final Map<SyncedSetting, String> settingsEnforced = profileService.enforceSettings(gitPath, project);
+        final SyncCoordinator coordinator = SyncCoordinator.getInstance();
+        boolean enforcedLocally = false;
+        if (enforceLocalSnapshot) {
+            try {
+                final Optional<SyncResult> snapshot = coordinator.getLocalSnapshot();
+                if (snapshot.isPresent()) {
+                    enforce(snapshot.get(), ImmutableMultimap.of());
+                    enforcedLocally = true;
+                }
+            } catch (final ProcessCanceledException e) {
+                throw e;
+            } catch (final Exception e) {
+                // The remote sync below will report anything that is really broken
+                log.warn("Failed to enforce shared settings from the local repository", e);
+            }
+        }
+        if (!syncRemote) {
+            return;
+        }
 
-                sendNotification(project, importedProfiles, settingsEnforced);
+        try {
+            indicator.checkCanceled();
+            indicator.setText(String.format("Updating shared settings from %s", state.repositoryUrl));
+            // A sync the user asked for always fetches, automatic ones may rely on a recent background check of the remote
+            final SyncResult result = coordinator.sync(getProject(), state.repositoryUrl, state.branch, !quiet);
+            // Profiles imported by a sync that another trigger started have already been reported by that trigger
+            final Multimap<SyncedSetting, String> importedProfiles = result.shared() && quiet
+                    ? ImmutableMultimap.of()
+                    : result.importedProfiles();
+            if (result.isStale()) {
+                scheduleRevalidation(result.staleCause());
+                if (!quiet) {
+                    NotificationGroupManager.getInstance()
+                            .getNotificationGroup("net.cicchiello.intellij.settingsshare")
+                            .createNotification(String.format("Using the shared settings synced last: %s", result.staleCause().getMessage()), NotificationType.WARNING)
+                            .notify(getProject());
+                }
             }
+
+            indicator.setText("Enforcing shared settings");
+            enforce(result, importedProfiles);
+        } catch (final ProcessCanceledException e) {
+            // Cancelled by the user, the next sync picks up where this one stopped
+            log.info("Shared settings sync was cancelled");
+            throw e;
         } catch (final Exception e) {
-            e.printStackTrace();
+            if (enforcedLocally) {
+                // Settings are already enforced from the local copy, being offline at startup isn't worth a notification
+                log.info("Failed to refresh shared settings from the remote repository", e);
+                return;
+            }
+            log.warn("Failed to sync shared settings", e);
             final String errorMessage = String.format("Failed to sync shared settings: %s", e.getMessage());
             NotificationGroupManager.getInstance()
                     .getNotificationGroup("net.cicchiello.intellij.settingsshare")
@@ -57,8 +123,49 @@ public class SyncSettingsTask extends Task.Backgroundable {
         }
     }
 
-    private void sendNotification(final Project project, final Multimap<SyncedSetting, String> updatedProfiles, final Map<SyncedSetting, String> profilesChanged) {
-        if ((quiet || project != getProject()) && updatedProfiles.isEmpty() && profilesChanged.isEmpty()) {
+    private void enforce(final SyncResult result, final Multimap<SyncedSetting, String> importedProfiles) throws IOException {
+        final ProfileUpdateService profileService = ProfileUpdateService.getInstance();
+        final SyncCoordinator coordinator = SyncCoordinator.getInstance();
+        final SyncMetrics metrics = SyncMetrics.getInstance();
+        for (final Project project : projects) {
+            ProgressManager.checkCanceled();
+            if (project.isDisposed()) {
+                continue;
+            }
+            // Automatic syncs skip projects that were already enforced against this commit, a sync the user asked
+            // for enforces everything again
+            if (!coordinator.claimEnforcement(project, result.commit()) && quiet) {
+                continue;
+            }
+            final Map<SyncedSetting, String> settingsEnforced;
+            try (final SyncMetrics.Timer ignored = metrics.start(SyncPhase.ENFORCE)) {
+                settingsEnforced = profileService.enforceSettings(result.path(), project);
+            } catch (final IOException | RuntimeException e) {
+                coordinator.releaseEnforcement(project, result.commit());
+                throw e;
+            }
+
+            try (final SyncMetrics.Timer ignored = metrics.start(SyncPhase.NOTIFICATION)) {
+                sendNotification(project, importedProfiles, settingsEnforced, result.isStale());
+            }
+        }
+    }
+
+    // The remote is checked again once its circuit breaker allows it, so settings are picked up without waiting for the
+    // next project to be opened
+    private static void scheduleRevalidation(final RemoteUnavailableException cause) {
+        final long delay = Math.max(cause.getRetryAtMillis() - System.currentTimeMillis(), MIN_REVALIDATION_DELAY_MILLIS);
+        SyncCoordinator.getInstance().scheduleRevalidation(delay, () -> ApplicationManager.getApplication().invokeLater(() -> {
+            final Project[] openProjects = ProjectManager.getInstance().getOpenProjects();
+            if (openProjects.length > 0) {
+                ProgressManager.getInstance().run(new SyncSettingsTask(openProjects, openProjects[0], true));
+            }
+        }, ApplicationManager.getApplication().getDisposed()));
+    }
+
+    private void sendNotification(final Project project, final Multimap<SyncedSetting, String> updatedProfiles, final Map<SyncedSetting, String> profilesChanged, final boolean stale) {
+        // A stale result already got a warning, "No changes!" would only be misleading
+        if ((quiet || stale || project != getProject()) && updatedProfiles.isEmpty() && profilesChanged.isEmpty()) {
             return;
         }
         final StringBuilder sb = new StringBuilder("<b>Shared settings synchronized</b>");
@@ -0,0 +1,30 @@
+package net.cicchiello.intellij.settingsshare.diagnostics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("net.cicchiello.intellij.settingsshare.EnforceSetting")
+@Label("Shared Settings Enforcement")
+@Description("A shared setting enforced for a project")
+@Category("Shared Settings")
+public class EnforceSettingEvent extends Event {
+
+    @Label("Setting")
+    public String setting;
+
+    @Label("Project")
+    public String project;
+
+    @Label("Profile")
+    public String profile;
+
+    @Label("Completed")
+    @Description("False when enforcing the setting failed or was cancelled")
+    public boolean completed;
+
+    @Label("Changed")
+    public boolean changed;
+}
@@ -0,0 +1,29 @@
+package net.cicchiello.intellij.settingsshare.diagnostics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("net.cicchiello.intellij.settingsshare.GitCommand")
+@Label("Shared Settings Git Command")
+@Description("A git process started by the shared settings plugin")
+@Category("Shared Settings")
+@StackTrace(false)
+public class GitCommandEvent extends Event {
+
+    @Label("Command")
+    public String command;
+
+    @Label("Command Line")
+    public String commandLine;
+
+    @Label("Exit Code")
+    @Description("-1 if the exit code isn't known")
+    public int exitCode;
+
+    @Label("Success")
+    public boolean success;
+}
@@ -0,0 +1,43 @@
+package net.cicchiello.intellij.settingsshare.diagnostics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("net.cicchiello.intellij.settingsshare.ProfileImport")
+@Label("Shared Settings Profile Import")
+@Description("A shared profile file that was checked against the installed profile, or the install of a changed one")
+@Category("Shared Settings")
+@StackTrace(false)
+public class ProfileImportEvent extends Event {
+
+    public static final String OUTCOME_UNCHANGED_FILE = "skipped, file unchanged";
+    public static final String OUTCOME_UNCHANGED_CANONICAL = "skipped, indexed canonical digest matches installed profile";
+    public static final String OUTCOME_UNCHANGED_SCAN = "skipped, pre-scan matches installed profile";
+    public static final String OUTCOME_UP_TO_DATE = "parsed, already installed";
+    public static final String OUTCOME_CHANGED = "parsed, changed";
+    public static final String OUTCOME_PLACEHOLDER = "placeholder, not enforced";
+    public static final String OUTCOME_INSTALLED = "installed";
+    public static final String OUTCOME_UNCHANGED_PLACEHOLDER = "skipped, placeholder of unchanged file";
+
+    @Label("Setting")
+    public String setting;
+
+    @Label("File")
+    public String file;
+
+    @Label("Size")
+    @Description("-1 if the file didn't have to be read")
+    @DataAmount
+    public long size;
+
+    @Label("Parsed")
+    public boolean parsed;
+
+    @Label("Outcome")
+    public String outcome;
+}
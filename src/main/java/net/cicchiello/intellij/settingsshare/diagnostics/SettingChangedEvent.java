@@ -0,0 +1,24 @@
+package net.cicchiello.intellij.settingsshare.diagnostics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// Keeps the stack trace so a recording shows which IDE change triggered the event
+@Name("net.cicchiello.intellij.settingsshare.SettingChanged")
+@Label("Shared Settings Change Event")
+@Description("A change to an enforced setting that was picked up by the shared settings plugin")
+@Category("Shared Settings")
+public class SettingChangedEvent extends Event {
+
+    @Label("Setting")
+    public String setting;
+
+    @Label("Project")
+    public String project;
+
+    @Label("Event Dispatch Thread")
+    public boolean dispatchThread;
+}
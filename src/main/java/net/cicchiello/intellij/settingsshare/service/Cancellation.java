@@ -0,0 +1,169 @@
+package net.cicchiello.intellij.settingsshare.service;
+
+import com.intellij.concurrency.SensitiveProgressWrapper;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.util.Ref;
+import com.intellij.openapi.util.ThrowableComputable;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+
+// Blocking steps of a sync that give up as soon as the progress indicator of the calling thread is cancelled, instead of
+// waiting for whatever they depend on to finish
+public final class Cancellation {
+
+    private static final long POLL_MILLIS = 100;
+
+    private Cancellation() {
+    }
+
+    public static void lock(@NonNull final Lock lock) {
+        while (true) {
+            ProgressManager.checkCanceled();
+            try {
+                if (lock.tryLock(POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProcessCanceledException(e);
+            }
+        }
+    }
+
+    public static <T> T await(@NonNull final Future<T> future) throws InterruptedException, ExecutionException {
+        while (true) {
+            ProgressManager.checkCanceled();
+            try {
+                return future.get(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (final TimeoutException ignored) {
+                // Still running, check the indicator again
+            }
+        }
+    }
+
+    // Waits for every future in order and cancels the rest once one fails. Work started through withCurrentIndicator
+    // stops when the caller is cancelled, its ProcessCanceledException is rethrown as is
+    @NonNull
+    public static <T> List<T> awaitAll(@NonNull final List<Future<T>> futures, @NonNull final String operation) throws IOException {
+        final List<T> results = new ArrayList<>();
+        try {
+            for (final Future<T> future : futures) {
+                results.add(await(future));
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(String.format("Interrupted while %s", operation), e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof ProcessCanceledException canceled) {
+                throw canceled;
+            }
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException(String.format("Failed while %s: %s", operation, e.getCause().getMessage()), e.getCause());
+        } finally {
+            futures.forEach(future -> future.cancel(true));
+        }
+        return results;
+    }
+
+    // Work handed to another thread is cancelled together with the thread that submitted it
+    @NonNull
+    public static <T> Callable<T> withCurrentIndicator(@NonNull final Callable<T> callable) {
+        final ProgressIndicator parent = ProgressManager.getInstance().getProgressIndicator();
+        if (parent == null) {
+            return callable;
+        }
+        return () -> {
+            final Ref<T> result = new Ref<>();
+            final Ref<Exception> error = new Ref<>();
+            ProgressManager.getInstance().runProcess(() -> {
+                try {
+                    result.set(callable.call());
+                } catch (final ProcessCanceledException e) {
+                    throw e;
+                } catch (final Exception e) {
+                    error.set(e);
+                }
+            }, new SensitiveProgressWrapper(parent));
+            if (!error.isNull()) {
+                throw error.get();
+            }
+            return result.get();
+        };
+    }
+
+    // For processes that are talked to directly instead of through git4idea: the process is killed once the current
+    // indicator is cancelled, which makes the blocked read or write fail
+    public static <T> T destroyOnCancel(@NonNull final Process process, @NonNull final ThrowableComputable<T, IOException> computable) throws IOException {
+        final ProgressIndicator indicator = ProgressManager.getInstance().getProgressIndicator();
+        if (indicator == null) {
+            return computable.compute();
+        }
+        final ScheduledFuture<?> watcher = AppExecutorUtil.getAppScheduledExecutorService().scheduleWithFixedDelay(() -> {
+            if (indicator.isCanceled()) {
+                process.destroyForcibly();
+            }
+        }, POLL_MILLIS, POLL_MILLIS, TimeUnit.MILLISECONDS);
+        try {
+            return computable.compute();
+        } finally {
+            watcher.cancel(false);
+        }
+    }
+
+    // Runs the computation under an indicator that is cancelled once the timeout passes or the calling thread's indicator
+    // is cancelled. Git commands run through git4idea stop their process when that happens
+    public static <T> T withTimeout(@NonNull final String operation, final long timeoutSeconds, @NonNull final ThrowableComputable<T, IOException> computable) throws IOException {
+        ProgressManager.checkCanceled();
+        final ProgressIndicator parent = ProgressManager.getInstance().getProgressIndicator();
+        final ProgressIndicator indicator = parent == null ? new EmptyProgressIndicator() : new SensitiveProgressWrapper(parent);
+        final AtomicBoolean timedOut = new AtomicBoolean();
+        final ScheduledFuture<?> timer = AppExecutorUtil.getAppScheduledExecutorService().schedule(() -> {
+            timedOut.set(true);
+            indicator.cancel();
+        }, timeoutSeconds, TimeUnit.SECONDS);
+        final Ref<T> result = new Ref<>();
+        final Ref<IOException> error = new Ref<>();
+        try {
+            ProgressManager.getInstance().runProcess(() -> {
+                try {
+                    result.set(computable.compute());
+                } catch (final IOException e) {
+                    error.set(e);
+                }
+            }, indicator);
+        } catch (final ProcessCanceledException e) {
+            if (timedOut.get()) {
+                throw new IOException(String.format("%s timed out after %d seconds", operation, timeoutSeconds), e);
+            }
+            throw e;
+        } finally {
+            timer.cancel(false);
+        }
+        // A cancelled command usually just fails, so the timeout has to be reported here as well
+        if (timedOut.get()) {
+            throw new IOException(String.format("%s timed out after %d seconds", operation, timeoutSeconds));
+        }
+        ProgressManager.checkCanceled();
+        if (!error.isNull()) {
+            throw error.get();
+        }
+        return result.get();
+    }
+}
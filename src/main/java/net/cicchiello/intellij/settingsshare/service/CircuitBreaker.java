@@ -0,0 +1,57 @@
+package net.cicchiello.intellij.settingsshare.service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Tracks the calls made to one remote. After a few failures in a row automatic syncs stop calling it until a backoff has
+// passed. After that the breaker is half-open: a single caller gets to probe the remote, which either closes the breaker
+// or opens it again for twice as long, everyone else keeps being turned away until then
+final class CircuitBreaker {
+
+    static final int FAILURE_THRESHOLD = 3;
+    static final long BASE_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    private final AtomicReference<Thread> probe = new AtomicReference<>();
+    private int consecutiveFailures;
+    private int timesOpened;
+    private volatile long openUntil;
+
+    boolean allowRequest() {
+        final long until = openUntil;
+        if (until == 0) {
+            return true;
+        }
+        if (System.currentTimeMillis() < until) {
+            return false;
+        }
+        return probe.compareAndSet(null, Thread.currentThread()) || probe.get() == Thread.currentThread();
+    }
+
+    // Hands the probe to the next caller when the calling thread got it but never reached the remote
+    void releaseProbe() {
+        probe.compareAndSet(Thread.currentThread(), null);
+    }
+
+    synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+        timesOpened = 0;
+        openUntil = 0;
+        probe.set(null);
+    }
+
+    synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (consecutiveFailures >= FAILURE_THRESHOLD) {
+            final long backoff = Math.min(BASE_BACKOFF_MILLIS << Math.min(timesOpened, 10), MAX_BACKOFF_MILLIS);
+            timesOpened++;
+            openUntil = System.currentTimeMillis() + backoff;
+        }
+        probe.set(null);
+    }
+
+    // When automatic syncs will call the remote again, 0 while the breaker is closed
+    long getRetryAtMillis() {
+        return openUntil;
+    }
+}
@@ -0,0 +1,86 @@
+package net.cicchiello.intellij.settingsshare.service;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Collects the config files written by one sync and writes them in a single step. Files whose content didn't change
+// are left alone and every other file is staged next to its target before any of them is replaced, so a failure can't
+// leave a partially written profile behind
+public class ConfigWriteBatch {
+
+    private static final Logger log = Logger.getInstance(ConfigWriteBatch.class);
+
+    private final Map<Path, byte[]> pending = new LinkedHashMap<>();
+    private final List<Runnable> afterCommit = new ArrayList<>();
+
+    public synchronized void write(@NonNull final String folder, @NonNull final String filename, @NonNull final String data) {
+        pending.put(Path.of(PathManager.getConfigPath(), folder, filename), data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Runs once the files written so far are on disk, e.g. to record what was imported
+    public synchronized void afterCommit(@NonNull final Runnable action) {
+        afterCommit.add(action);
+    }
+
+    // Returns the number of files that were actually written
+    public synchronized int commit() throws IOException {
+        final Map<Path, Path> staged = new LinkedHashMap<>();
+        final int written;
+        try (final SyncMetrics.Timer ignored = SyncMetrics.getInstance().start(SyncPhase.CONFIG_WRITE)) {
+            for (final Map.Entry<Path, byte[]> entry : pending.entrySet()) {
+                final Path target = entry.getKey();
+                if (hasContent(target, entry.getValue())) {
+                    continue;
+                }
+                Files.createDirectories(target.getParent());
+                final Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+                staged.put(temp, target);
+                Files.write(temp, entry.getValue());
+            }
+            written = staged.size();
+            for (final Map.Entry<Path, Path> entry : staged.entrySet()) {
+                move(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            // Only left over if something failed
+            for (final Path temp : staged.keySet()) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (final IOException e) {
+                    log.warn(String.format("Failed to delete temporary file %s", temp), e);
+                }
+            }
+        }
+        afterCommit.forEach(Runnable::run);
+        pending.clear();
+        afterCommit.clear();
+        return written;
+    }
+
+    private static boolean hasContent(final Path file, final byte[] content) throws IOException {
+        return Files.isRegularFile(file)
+                && Files.size(file) == content.length
+                && Arrays.equals(Files.readAllBytes(file), content);
+    }
+
+    private static void move(final Path source, final Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (final AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package net.cicchiello.intellij.settingsshare.service;
+
+import lombok.NonNull;
+import org.jdom.Attribute;
+import org.jdom.Content;
+import org.jdom.Element;
+import org.jdom.Text;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+
+public final class ContentDigest {
+
+    private static final Comparator<Attribute> ATTRIBUTE_ORDER = Comparator.comparing(Attribute::getNamespaceURI)
+            .thenComparing(Attribute::getName);
+
+    private ContentDigest() {
+    }
+
+    // Uses the same format as git's blob object ids so a digest computed from a working tree file matches the blob hash
+    // git reports for it
+    @NonNull
+    public static String gitBlobHash(@NonNull final byte[] content) {
+        final MessageDigest digest = newSha1();
+        digest.update(String.format("blob %d\0", content.length).getBytes(StandardCharsets.US_ASCII));
+        digest.update(content);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // Digest of an element tree that doesn't depend on attribute order or formatting whitespace. The tree is fed to the
+    // digest node by node so the document is never written out as a string
+    @NonNull
+    public static String elementDigest(@NonNull final Element element) {
+        final MessageDigest digest = newSha1();
+        updateDigest(digest, element);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    @NonNull
+    public static MessageDigest newSha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    private static void updateDigest(final MessageDigest digest, final Element element) {
+        updateElementStart(digest, element.getNamespaceURI(), element.getName());
+        final List<Attribute> attributes = new ArrayList<>(element.getAttributes());
+        attributes.sort(ATTRIBUTE_ORDER);
+        for (final Attribute attribute : attributes) {
+            updateAttribute(digest, attribute.getNamespaceURI(), attribute.getName(), attribute.getValue());
+        }
+        for (final Content content : element.getContent()) {
+            if (content instanceof Element child) {
+                updateDigest(digest, child);
+            } else if (content instanceof Text text) {
+                updateText(digest, text.getText());
+            }
+        }
+        updateElementEnd(digest);
+    }
+
+    // The steps below are shared with ProfileScanner, which computes the same digest while streaming the XML. Attributes
+    // have to be passed sorted by namespace and then name
+
+    static void updateElementStart(final MessageDigest digest, final String namespace, final String name) {
+        digest.update((byte) 'E');
+        updateString(digest, namespace);
+        updateString(digest, name);
+    }
+
+    static void updateAttribute(final MessageDigest digest, final String namespace, final String name, final String value) {
+        digest.update((byte) 'A');
+        updateString(digest, namespace);
+        updateString(digest, name);
+        updateString(digest, value);
+    }
+
+    // Whitespace only text is formatting and ignored
+    static void updateText(final MessageDigest digest, final String text) {
+        if (!isXmlWhitespace(text)) {
+            digest.update((byte) 'T');
+            updateString(digest, text);
+        }
+    }
+
+    // Closes the element so moving a node to a different parent changes the digest
+    static void updateElementEnd(final MessageDigest digest) {
+        digest.update((byte) 'e');
+    }
+
+    private static boolean isXmlWhitespace(final String text) {
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c != ' ' && c != '\t' && c != '\r' && c != '\n') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Length prefixed so adjacent values can't run into each other
+    private static void updateString(final MessageDigest digest, final String value) {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        digest.update((byte) (bytes.length >>> 24));
+        digest.update((byte) (bytes.length >>> 16));
+        digest.update((byte) (bytes.length >>> 8));
+        digest.update((byte) bytes.length);
+        digest.update(bytes);
+    }
+}
@@ -0,0 +1,43 @@
+package net.cicchiello.intellij.settingsshare.service;
+
+import lombok.NonNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+
+public final class EnforcementRules {
+
+    public static final EnforcementRules EMPTY = new EnforcementRules(Map.of());
+
+    private final Map<String, String> enforcedProfiles;
+
+    private EnforcementRules(final Map<String, String> enforcedProfiles) {
+        this.enforcedProfiles = Map.copyOf(enforcedProfiles);
+    }
+
+    @NonNull
+    public static EnforcementRules parse(@NonNull final byte[] content) throws IOException {
+        final Properties properties = new Properties();
+        try (final InputStream is = new ByteArrayInputStream(content)) {
+            properties.load(is);
+        }
+        final Map<String, String> enforcedProfiles = new HashMap<>();
+        properties.stringPropertyNames().forEach(name -> enforcedProfiles.put(name, properties.getProperty(name)));
+        return new EnforcementRules(enforcedProfiles);
+    }
+
+    @NonNull
+    public Optional<String> getEnforcedProfile(@NonNull final String configName) {
+        return Optional.ofNullable(enforcedProfiles.get(configName));
+    }
+
+    @NonNull
+    public Map<String, String> asMap() {
+        return enforcedProfiles;
+    }
+}
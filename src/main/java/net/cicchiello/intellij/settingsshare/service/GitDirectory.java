@@ -0,0 +1,118 @@
+package net.cicchiello.intellij.settingsshare.service;
+
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.regex.Pattern;
+
+// Reads refs and config straight from a .git directory so simple lookups don't need a git process. Only understands
+// the plain files layout (loose refs, packed-refs and config), callers fall back to git when a lookup comes up empty
+public final class GitDirectory {
+
+    public static final Pattern COMMIT_HASH = Pattern.compile("[0-9a-f]{40}([0-9a-f]{24})?");
+    private static final String HEAD = "HEAD";
+    private static final String PACKED_REFS = "packed-refs";
+    private static final String CONFIG = "config";
+    private static final String SYMBOLIC_REF_PREFIX = "ref:";
+    private static final int MAX_SYMBOLIC_REF_DEPTH = 5;
+
+    private GitDirectory() {
+    }
+
+    // The commit HEAD points at if it is detached, which it is once a commit was checked out with checkout <hash>^0.
+    // A symbolic HEAD right after a clone may not have a working tree yet
+    @NonNull
+    public static Optional<String> readDetachedHead(@NonNull final Path gitDir) throws IOException {
+        final Path head = gitDir.resolve(HEAD);
+        if (!Files.isRegularFile(head)) {
+            return Optional.empty();
+        }
+        final String content = Files.readString(head, StandardCharsets.US_ASCII).trim();
+        return COMMIT_HASH.matcher(content).matches() ? Optional.of(content) : Optional.empty();
+    }
+
+    // Resolves a revision the way git rev-parse does for plain ref names, e.g. "origin/main" or "HEAD"
+    @NonNull
+    public static Optional<String> resolveRef(@NonNull final Path gitDir, @NonNull final String name) throws IOException {
+        if (COMMIT_HASH.matcher(name).matches()) {
+            return Optional.of(name);
+        }
+        final List<String> candidates = List.of(name, "refs/" + name, "refs/tags/" + name, "refs/heads/" + name,
+                "refs/remotes/" + name, "refs/remotes/" + name + "/" + HEAD);
+        for (final String candidate : candidates) {
+            final Optional<String> hash = readRef(gitDir, candidate, 0);
+            if (hash.isPresent()) {
+                return hash;
+            }
+        }
+        return Optional.empty();
+    }
+
+    // The url of the remote as configured in .git/config, without any url.<base>.insteadOf rewriting
+    @NonNull
+    public static Optional<String> readRemoteUrl(@NonNull final Path gitDir, @NonNull final String remote) throws IOException {
+        final Path config = gitDir.resolve(CONFIG);
+        if (!Files.isRegularFile(config)) {
+            return Optional.empty();
+        }
+        final String section = String.format("[remote \"%s\"]", remote);
+        boolean inSection = false;
+        for (final String rawLine : Files.readAllLines(config, StandardCharsets.UTF_8)) {
+            final String line = rawLine.trim();
+            if (line.startsWith("[")) {
+                inSection = line.equals(section);
+                continue;
+            }
+            final int equals = line.indexOf('=');
+            if (inSection && equals > 0 && line.substring(0, equals).trim().equalsIgnoreCase("url")) {
+                return Optional.of(unquote(line.substring(equals + 1).trim()));
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static Optional<String> readRef(final Path gitDir, final String ref, final int depth) throws IOException {
+        if (depth > MAX_SYMBOLIC_REF_DEPTH) {
+            return Optional.empty();
+        }
+        final Path looseRef = gitDir.resolve(ref);
+        if (Files.isRegularFile(looseRef)) {
+            final String content = Files.readString(looseRef, StandardCharsets.US_ASCII).trim();
+            if (content.startsWith(SYMBOLIC_REF_PREFIX)) {
+                return readRef(gitDir, content.substring(SYMBOLIC_REF_PREFIX.length()).trim(), depth + 1);
+            }
+            return COMMIT_HASH.matcher(content).matches() ? Optional.of(content) : Optional.empty();
+        }
+        return readPackedRef(gitDir, ref);
+    }
+
+    private static Optional<String> readPackedRef(final Path gitDir, final String ref) throws IOException {
+        final Path packedRefs = gitDir.resolve(PACKED_REFS);
+        if (!Files.isRegularFile(packedRefs)) {
+            return Optional.empty();
+        }
+        // Lines look like "<hash> <ref>". Comments start with '#' and peeled tags with '^'
+        for (final String line : Files.readAllLines(packedRefs, StandardCharsets.UTF_8)) {
+            if (line.isEmpty() || line.charAt(0) == '#' || line.charAt(0) == '^') {
+                continue;
+            }
+            final int space = line.indexOf(' ');
+            if (space > 0 && line.substring(space + 1).trim().equals(ref)) {
+                return Optional.of(line.substring(0, space));
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static String unquote(final String value) {
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            return value.substring(1, value.length() - 1).replace("\\\"", "\"").replace("\\\\", "\\");
+        }
+        return value;
+    }
+}
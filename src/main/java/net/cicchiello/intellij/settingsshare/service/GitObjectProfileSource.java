@@ -0,0 +1,61 @@
+package net.cicchiello.intellij.settingsshare.service;
+
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+// The files of one commit as listed by git ls-tree. Contents are only read, through the shared cat-file process, when
+// they are asked for
+public class GitObjectProfileSource implements ProfileSource {
+
+    private final String commit;
+    private final Map<String, String> blobIds;
+    private final GitObjectReader reader;
+
+    public GitObjectProfileSource(@NonNull final String commit, @NonNull final Map<String, String> blobIds, @NonNull final GitObjectReader reader) {
+        this.commit = commit;
+        this.blobIds = Map.copyOf(blobIds);
+        this.reader = reader;
+    }
+
+    @NonNull
+    public String getCommit() {
+        return commit;
+    }
+
+    @NonNull
+    @Override
+    public List<String> listFiles(@NonNull final String folder) {
+        final String prefix = folder.endsWith("/") ? folder : folder + "/";
+        return blobIds.keySet().stream()
+                .filter(path -> path.startsWith(prefix) && path.indexOf('/', prefix.length()) < 0)
+                .map(path -> path.substring(prefix.length()))
+                .sorted()
+                .toList();
+    }
+
+    @Override
+    public boolean exists(@NonNull final String path) {
+        return blobIds.containsKey(path);
+    }
+
+    @NonNull
+    @Override
+    public Optional<String> getBlobId(@NonNull final String path) {
+        return Optional.ofNullable(blobIds.get(path));
+    }
+
+    @NonNull
+    @Override
+    public byte[] readFile(@NonNull final String path) throws IOException {
+        final String blobId = blobIds.get(path);
+        if (blobId == null) {
+            throw new NoSuchFileException(path, null, String.format("Not part of commit %s", commit));
+        }
+        return reader.readBlob(blobId);
+    }
+}
@@ -0,0 +1,96 @@
+package net.cicchiello.intellij.settingsshare.service;
+
+import com.intellij.openapi.diagnostic.Logger;
+import lombok.NonNull;
+import net.cicchiello.intellij.settingsshare.AppSettingsState;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// A long-lived git cat-file --batch process so reading any number of blobs only costs one process spawn
+public class GitObjectReader implements Closeable {
+
+    private static final Logger log = Logger.getInstance(GitObjectReader.class);
+
+    private final Process process;
+    private final OutputStream requests;
+    private final InputStream responses;
+
+    public GitObjectReader(@NonNull final String gitExecutable, @NonNull final Path repository) throws IOException {
+        process = new ProcessBuilder(gitExecutable, "cat-file", "--batch")
+                .directory(repository.toFile())
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        requests = new BufferedOutputStream(process.getOutputStream());
+        responses = new BufferedInputStream(process.getInputStream());
+    }
+
+    // Gets the same timeout as other local git commands. A process that stalls or is cancelled is killed, so a new reader
+    // has to be created after that
+    @NonNull
+    public synchronized byte[] readBlob(@NonNull final String blobId) throws IOException {
+        if (!process.isAlive()) {
+            throw new IOException("git cat-file is no longer running");
+        }
+        final int timeoutSeconds = Math.max(1, AppSettingsState.getInstance().localGitTimeoutSeconds);
+        return Cancellation.withTimeout("git cat-file", timeoutSeconds, () -> Cancellation.destroyOnCancel(process, () -> doReadBlob(blobId)));
+    }
+
+    private byte[] doReadBlob(final String blobId) throws IOException {
+        requests.write((blobId + "\n").getBytes(StandardCharsets.US_ASCII));
+        requests.flush();
+        // Each response is "<id> <type> <size>\n<content>\n", or "<id> missing\n"
+        final String header = readLine();
+        final String[] parts = header.split(" ");
+        if (parts.length != 3 || !"blob".equals(parts[1])) {
+            throw new IOException(String.format("Unable to read %s from the shared settings repository: %s", blobId, header));
+        }
+        final int size = Integer.parseInt(parts[2]);
+        final byte[] content = responses.readNBytes(size);
+        if (content.length != size || responses.read() != '\n') {
+            throw new EOFException(String.format("Unexpected end of git cat-file output while reading %s", blobId));
+        }
+        return content;
+    }
+
+    public boolean isAlive() {
+        return process.isAlive();
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            requests.close();
+            if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                process.destroy();
+            }
+        } catch (final IOException e) {
+            log.info("Failed to close git cat-file", e);
+            process.destroy();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            process.destroy();
+        }
+    }
+
+    private String readLine() throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = responses.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException("git cat-file exited unexpectedly");
+            }
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+}
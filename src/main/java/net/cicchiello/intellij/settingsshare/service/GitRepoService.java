@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 
 public interface GitRepoService {
 
@@ -17,7 +18,25 @@ public interface GitRepoService {
 
     List<String> getBranches(@NonNull final Project project, @NonNull final String url) throws IOException;
 
-    Path updateAndCheckoutBranch(@NonNull final Project project, @NonNull final String url, @NonNull final String branch) throws IOException;
+    RepositoryCheckout updateAndCheckoutBranch(@NonNull final Project project, @NonNull final String url, @NonNull final String branch, final boolean forceFetch) throws IOException;
+
+    // Updates every source in parallel. The first source is the main repository, the others are overlays
+    List<RepositoryCheckout> updateAndCheckoutSources(@NonNull final Project project, @NonNull final List<RepositorySource> sources, final boolean forceFetch) throws IOException;
+
+    Optional<Set<String>> getChangedFiles(@NonNull final Project project, @NonNull final String fromCommit, @NonNull final String toCommit) throws IOException;
 
     Optional<Path> getRepositoryPath() throws IOException;
+
+    // The commit the repository was last synced to, read from disk without starting git
+    Optional<String> getSyncedCommit(@NonNull final Path repoPath) throws IOException;
+
+    ProfileSource getProfileSource(@NonNull final Path repoPath) throws IOException;
+
+    void startBackgroundPrefetch();
+
+    // Whether the background prefetch saw the branch move past the commit the last sync used
+    boolean hasFetchedUpdate(@NonNull final String url, @NonNull final String branch) throws IOException;
+
+    // Number of git processes started since the IDE was started
+    long getGitProcessCount();
 }
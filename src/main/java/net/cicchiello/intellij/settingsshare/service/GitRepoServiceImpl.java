@@ -1,63 +1,176 @@
 package net.cicchiello.intellij.settingsshare.service;
 
+import com.intellij.ide.IdeEventQueue;
 import com.intellij.openapi.Disposable;
 import com.intellij.openapi.application.PathManager;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
-import com.intellij.openapi.vcs.FilePath;
-import com.intellij.openapi.vcs.VcsException;
-import com.intellij.openapi.vfs.LocalFileSystem;
-import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.util.ThrowableComputable;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import git4idea.GitUtil;
 import git4idea.checkout.GitCheckoutProvider;
 import git4idea.commands.Git;
 import git4idea.commands.GitCommand;
 import git4idea.commands.GitCommandResult;
 import git4idea.commands.GitLineHandler;
+import git4idea.config.GitExecutable;
+import git4idea.config.GitExecutableManager;
 import lombok.NonNull;
+import net.cicchiello.intellij.settingsshare.AppSettingsState;
+import net.cicchiello.intellij.settingsshare.diagnostics.GitCommandEvent;
 import org.apache.commons.io.file.PathUtils;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Locale;
 import java.util.Optional;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
 
 public class GitRepoServiceImpl implements GitRepoService, Disposable {
 
     private static final Logger log = Logger.getInstance(GitRepoServiceImpl.class);
     public static final String GIT_DEFAULT_REMOTE = "origin";
+    public static final String SHARED_SETTINGS_FOLDER = "sharedSettings";
+    public static final String SPARSE_CHECKOUT_FILE = "info/sparse-checkout";
     public static final String REPO_FOLDER = "repo";
-    public static final String TEST_REPO_FOLDER = "test";
+    // Overlay repositories are cloned next to the main one, in a folder named after their url and branch
+    public static final String LAYER_FOLDER_PREFIX = "layer-";
+    // Branches used to be listed from a second full clone in this folder
+    public static final String LEGACY_TEST_REPO_FOLDER = "test";
+    private static final String REMOTE_HEADS_PREFIX = "refs/heads/";
+    private static final String HEAD_FILE = "HEAD";
+    // The commit synced in object store mode. Kept apart from HEAD so HEAD always describes the working tree
+    private static final String OBJECT_STORE_HEAD_FILE = "SHARED_SETTINGS_HEAD";
+    private static final int MAX_PARALLEL_FETCHES = 4;
+    private static final long BRANCH_CACHE_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final long PREFETCH_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final long PREFETCH_MAX_BACKOFF_MILLIS = TimeUnit.HOURS.toMillis(2);
+    private static final long PREFETCH_IDLE_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final long IDLE_THRESHOLD_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    // A sync can rely on a background check of the remote head that is at most this old instead of fetching again
+    private static final long REMOTE_CHECK_FRESHNESS_MILLIS = PREFETCH_INTERVAL_MILLIS;
+    // Parts of the errors git and the timeout report when the remote couldn't be reached at all, in lower case. Commands
+    // that talk to a remote run without translations so these match whatever language git is installed in
+    private static final List<String> UNREACHABLE_MARKERS = List.of(
+            "timed out",
+            "could not resolve host",
+            "could not resolve hostname",
+            "failed to connect to",
+            "connection refused",
+            "connection reset",
+            "connection closed by",
+            "network is unreachable",
+            "no route to host",
+            "temporary failure in name resolution",
+            "the remote end hung up unexpectedly");
 
     private final Lock lock = new ReentrantLock(true);
+    // Every source is its own repository, so they can all talk to their remote at the same time
+    private final ExecutorService fetchExecutor = AppExecutorUtil.createBoundedApplicationPoolExecutor("Shared Settings Fetch", MAX_PARALLEL_FETCHES);
+    private final Map<String, CachedBranches> branchCache = new ConcurrentHashMap<>();
+    private final AtomicBoolean prefetchStarted = new AtomicBoolean();
+    private volatile boolean disposed;
+    private volatile ScheduledFuture<?> prefetchFuture;
+    private volatile RemoteHeadCheck lastRemoteCheck;
+    private int prefetchFailures;
+    // Guards the object store readers, which are also used outside of syncs by setting change events
+    private final Object objectStoreLock = new Object();
+    private final Map<Path, GitObjectReader> objectReaders = new HashMap<>();
+    private final Map<Path, GitObjectProfileSource> objectSources = new HashMap<>();
+    private final AtomicLong gitProcessCount = new AtomicLong();
+    private final Map<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
 
     @Override
     public List<String> getBranches(@NonNull final Project project, @NonNull final String url) throws IOException {
-        lock.lock();
+        final CachedBranches cached = branchCache.get(url);
+        if (cached != null && System.currentTimeMillis() - cached.fetchedAt() < BRANCH_CACHE_TTL_MILLIS) {
+            return cached.branches();
+        }
+        final List<String> branches = listRemoteBranches(project, url);
+        branchCache.put(url, new CachedBranches(branches, System.currentTimeMillis()));
+        return branches;
+    }
+
+    @Override
+    public RepositoryCheckout updateAndCheckoutBranch(@NonNull final Project project, @NonNull final String url, @NonNull final String branch, final boolean forceFetch) throws IOException {
+        Cancellation.lock(lock);
+        try {
+            deleteLegacyTestRepository();
+            // The reader keeps the pack files open, which would get in the way if the repository has to be cloned again
+            closeObjectReaders();
+            final RepositorySource source = new RepositorySource(url, branch);
+            deleteUnusedLayers(List.of(source));
+            return updateRepository(project, source, REPO_FOLDER, forceFetch);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<RepositoryCheckout> updateAndCheckoutSources(@NonNull final Project project, @NonNull final List<RepositorySource> sources, final boolean forceFetch) throws IOException {
+        Cancellation.lock(lock);
         try {
-            final VirtualFile repo = getRepository(project, url, TEST_REPO_FOLDER, false);
-            if (repo == null) {
-                return List.of();
+            deleteLegacyTestRepository();
+            closeObjectReaders();
+            final List<Future<RepositoryCheckout>> futures = new ArrayList<>();
+            for (int i = 0; i < sources.size(); i++) {
+                final RepositorySource source = sources.get(i);
+                final String folder = i == 0 ? REPO_FOLDER : getLayerFolder(source);
+                futures.add(fetchExecutor.submit(Cancellation.withCurrentIndicator(() -> updateRepository(project, source, folder, forceFetch))));
             }
-            return listRepoBranches(repo, project);
+            final List<RepositoryCheckout> checkouts = Cancellation.awaitAll(futures, "updating shared settings repositories");
+            deleteUnusedLayers(sources);
+            return checkouts;
         } finally {
             lock.unlock();
         }
     }
 
     @Override
-    public Path updateAndCheckoutBranch(@NonNull final Project project, @NonNull final String url, @NonNull final String branch) throws IOException {
-        lock.lock();
+    public Optional<Set<String>> getChangedFiles(@NonNull final Project project, @NonNull final String fromCommit, @NonNull final String toCommit) throws IOException {
+        Cancellation.lock(lock);
         try {
-            final VirtualFile repo = getRepository(project, url, REPO_FOLDER, false);
-            if (repo == null) {
-                throw new IOException(String.format("Unable to find repository %s. Please check your settings", url));
+            final Optional<Path> maybePath = getRepositoryPath();
+            if (maybePath.isEmpty()) {
+                return Optional.empty();
+            }
+            final GitLineHandler diffCmd = new GitLineHandler(project, maybePath.get().toFile(), GitCommand.DIFF);
+            diffCmd.addParameters("--name-only", "--no-renames", fromCommit, toCommit);
+            diffCmd.endOptions();
+            final GitCommandResult result = runGit(diffCmd, GitOperation.LOCAL);
+            if (!result.success()) {
+                // The old commit may no longer exist locally (e.g. the repository was re-cloned), the caller will need to
+                // look at every file instead
+                log.info(String.format("Unable to diff %s..%s: %s", fromCommit, toCommit, result.getErrorOutputAsJoinedString()));
+                return Optional.empty();
             }
-            checkoutAndResetBranch(repo, project, branch);
-            return Path.of(repo.getPath());
+            return Optional.of(new HashSet<>(result.getOutput().stream()
+                    .map(String::trim)
+                    .filter(s -> !s.isEmpty())
+                    .toList()));
         } finally {
             lock.unlock();
         }
@@ -66,61 +179,166 @@ public class GitRepoServiceImpl implements GitRepoService, Disposable {
     @Override
     public Optional<Path> getRepositoryPath() throws IOException {
         final Path path = getRepoLocation(REPO_FOLDER);
-        final VirtualFile file = LocalFileSystem.getInstance().findFileByNioFile(path);
-        if (file == null) {
-            throw new IOException("Failed to create directory to checkout repo");
+        return isGitRepository(path) ? Optional.of(path) : Optional.empty();
+    }
+
+    @Override
+    public ProfileSource getProfileSource(@NonNull final Path repoPath) throws IOException {
+        // Merged layers are plain folders
+        if (!useObjectStore() || !isGitRepository(repoPath)) {
+            return new WorktreeProfileSource(repoPath);
         }
-        // Sometimes the VirtualFile can get out of sync so refresh it just in case
-        file.refresh(false, false);
-        if (GitUtil.findGitDir(file) == null) {
-            return Optional.empty();
+        synchronized (objectStoreLock) {
+            final Project project = ProjectManager.getInstance().getDefaultProject();
+            final Path gitDir = repoPath.resolve(GitUtil.DOT_GIT);
+            // Before the first sync in object store mode the commit in the working tree is the one that was applied
+            final Optional<String> syncedCommit = Files.isRegularFile(gitDir.resolve(OBJECT_STORE_HEAD_FILE))
+                    ? GitDirectory.resolveRef(gitDir, OBJECT_STORE_HEAD_FILE)
+                    : resolveCommit(repoPath, project, HEAD_FILE);
+            final String commit = syncedCommit.orElseThrow(() -> new IOException(String.format("Repository %s does not have any commits", repoPath)));
+            GitObjectReader reader = objectReaders.get(repoPath);
+            final GitObjectProfileSource cached = objectSources.get(repoPath);
+            if (cached != null && cached.getCommit().equals(commit) && reader != null && reader.isAlive()) {
+                return cached;
+            }
+            if (reader == null || !reader.isAlive()) {
+                if (reader != null) {
+                    reader.close();
+                }
+                gitProcessCount.incrementAndGet();
+                reader = new GitObjectReader(GitExecutableManager.getInstance().getExecutable(project).getExePath(), repoPath);
+                objectReaders.put(repoPath, reader);
+            }
+            final GitObjectProfileSource source = new GitObjectProfileSource(commit, listTree(repoPath, project, commit), reader);
+            objectSources.put(repoPath, source);
+            return source;
         }
-        return Optional.of(path);
     }
 
-    private VirtualFile getRepository(final Project project, final String repoUrl, final String repoFolder, final boolean retry) throws IOException {
-        final Path path = getRepoLocation(repoFolder);
-        final VirtualFile file = LocalFileSystem.getInstance().findFileByNioFile(path);
-        if (file == null) {
-            throw new IOException("Failed to create directory to checkout repo");
+    @Override
+    public long getGitProcessCount() {
+        return gitProcessCount.get();
+    }
+
+    @Override
+    public void startBackgroundPrefetch() {
+        if (prefetchStarted.compareAndSet(false, true)) {
+            schedulePrefetch(PREFETCH_INTERVAL_MILLIS);
         }
-        // Sometimes the VirtualFile can get out of sync so refresh it just in case
-        file.refresh(false, false);
+    }
+
+    @Override
+    public boolean hasFetchedUpdate(@NonNull final String url, @NonNull final String branch) throws IOException {
+        final RemoteHeadCheck check = lastRemoteCheck;
+        if (check == null || !check.url().equals(url) || !check.branch().equals(branch)) {
+            return false;
+        }
+        final Path repo = getSharedSettingsLocation().resolve(REPO_FOLDER);
+        if (!Files.isDirectory(repo.resolve(GitUtil.DOT_GIT))) {
+            return false;
+        }
+        return !getSyncedCommit(repo).equals(Optional.of(check.hash()));
+    }
+
+    @Override
+    public Optional<String> getSyncedCommit(@NonNull final Path repoPath) throws IOException {
+        final Path gitDir = repoPath.resolve(GitUtil.DOT_GIT);
+        return Files.isRegularFile(gitDir.resolve(OBJECT_STORE_HEAD_FILE))
+                ? GitDirectory.resolveRef(gitDir, OBJECT_STORE_HEAD_FILE)
+                : GitDirectory.readDetachedHead(gitDir);
+    }
+
+    private RepositoryCheckout updateRepository(final Project project, final RepositorySource source, final String repoFolder, final boolean forceFetch) throws IOException {
+        final boolean fetch = forceFetch || !isRemoteCheckFresh(source.url(), source.branch());
+        final CircuitBreaker breaker = getCircuitBreaker(source.url());
+        // Automatic syncs don't wait on a remote that keeps failing, a sync the user asked for always tries it
+        if (fetch && !forceFetch && !breaker.allowRequest()) {
+            throw new RemoteUnavailableException(source.url(), breaker.getRetryAtMillis(), null);
+        }
+        final Path repo;
+        try {
+            repo = getRepository(project, source.url(), source.branch(), repoFolder, fetch, false);
+        } finally {
+            breaker.releaseProbe();
+        }
+        if (repo == null) {
+            throw new IOException(String.format("Unable to find repository %s. Please check your settings", source.url()));
+        }
+        final String commit;
+        if (useObjectStore()) {
+            commit = recordObjectStoreHead(repo, project, source.branch());
+        } else {
+            Files.deleteIfExists(repo.resolve(GitUtil.DOT_GIT).resolve(OBJECT_STORE_HEAD_FILE));
+            commit = checkoutAndResetBranch(repo, project, source.branch(), forceFetch);
+        }
+        return new RepositoryCheckout(repo, commit);
+    }
+
+    // Two overlays of the same repository on different branches need their own working copies
+    private static String getLayerFolder(final RepositorySource source) {
+        final byte[] hash = ContentDigest.newSha1().digest(String.format("%s%n%s", source.url(), source.branch()).getBytes(StandardCharsets.UTF_8));
+        return LAYER_FOLDER_PREFIX + HexFormat.of().formatHex(hash, 0, 6);
+    }
+
+    private void deleteUnusedLayers(final List<RepositorySource> sources) throws IOException {
+        final Set<String> used = new HashSet<>();
+        sources.stream().skip(1).forEach(source -> used.add(getLayerFolder(source)));
+        try (final Stream<Path> stream = Files.list(getSharedSettingsLocation())) {
+            for (final Path path : stream.toList()) {
+                final String name = path.getFileName().toString();
+                if (name.startsWith(LAYER_FOLDER_PREFIX) && !used.contains(name)) {
+                    log.info(String.format("Deleting repository of removed overlay at %s", path));
+                    PathUtils.deleteDirectory(path);
+                }
+            }
+        }
+    }
+
+    private Path getRepository(final Project project, final String repoUrl, final String branch, final String repoFolder, final boolean fetch, final boolean retry) throws IOException {
+        final Path path = getRepoLocation(repoFolder);
+        final boolean shallow = AppSettingsState.getInstance().shallowClone;
         boolean cloned = false;
-        if (GitUtil.findGitDir(file) == null && !(cloned = cloneRepository(project, file, repoUrl))) {
-            throw new IOException(String.format("Failed to clone %s", repoUrl));
+        if (!isGitRepository(path)) {
+            callRemote(repoUrl, () -> {
+                if (!cloneRepository(project, path, repoUrl, shallow ? branch : null)) {
+                    throw new IOException(String.format("Failed to clone %s", repoUrl));
+                }
+                return true;
+            });
+            cloned = true;
         }
-        final Git git = Git.getInstance();
-        final GitLineHandler remoteGetUrl = new GitLineHandler(project, file, GitCommand.REMOTE);
-        remoteGetUrl.addParameters("get-url");
-        remoteGetUrl.addParameters(GIT_DEFAULT_REMOTE);
-        final GitCommandResult remoteResult = git.runCommand(remoteGetUrl);
-        if (!remoteResult.success()) {
-            throw new IOException("Failed to check remote: " + remoteResult.getErrorOutputAsHtmlString());
+        if (isSparseRepository(path) != shallow) {
+            if (retry) {
+                throw new IOException(String.format("Failed to get local repository: %s", path));
+            }
+            log.info(String.format("Git repository %s does not match the configured clone mode, cloning it again", path));
+            deleteRepository(repoFolder);
+            return getRepository(project, repoUrl, branch, repoFolder, fetch, true);
         }
-        final Optional<String> remote = remoteResult.getOutput()
-                .stream()
-                .findFirst();
+        final Optional<String> remote = getRemoteUrl(project, path);
         if (remote.isEmpty() || !remote.get().equals(repoUrl)) {
             if (retry) {
-                throw new IOException(String.format("Failed to get local repository: %s", file));
+                throw new IOException(String.format("Failed to get local repository: %s", path));
             }
             log.info(String.format("Git repository origin %s does not match wanted origin %s", remote.orElse(null), repoUrl));
             deleteRepository(repoFolder);
-            return getRepository(project, repoUrl, repoFolder, true);
+            return getRepository(project, repoUrl, branch, repoFolder, fetch, true);
         }
 
-        if (!cloned && !fetchRepository(file, project)) {
+        if (!cloned && fetch && !callRemote(repoUrl, () -> fetchRepository(path, project, shallow ? branch : null))) {
             log.warn("Failed to fetch repository");
             return null;
         }
-        return file;
+        return path;
     }
 
-    private Path getRepoLocation(final String repo) throws IOException {
+    private Path getSharedSettingsLocation() {
         // We'll store this repo in IntelliJ's configuration since this should be shared across all projects
-        final String configPath = PathManager.getConfigPath();
-        final Path repoFolder = Path.of(configPath, "sharedSettings").resolve(repo);
+        return Path.of(PathManager.getConfigPath(), SHARED_SETTINGS_FOLDER);
+    }
+
+    private Path getRepoLocation(final String repo) throws IOException {
+        final Path repoFolder = getSharedSettingsLocation().resolve(repo);
         if (Files.notExists(repoFolder)) {
             log.info(String.format("Creating shared settings repository folder in %s", repoFolder));
             Files.createDirectories(repoFolder);
@@ -128,71 +346,420 @@ public class GitRepoServiceImpl implements GitRepoService, Disposable {
         return repoFolder;
     }
 
-    private boolean fetchRepository(final VirtualFile repo, final Project project) throws IOException {
-        log.info(String.format("Fetching repository %s", repo.getPath()));
-        final GitLineHandler fetchCmd = new GitLineHandler(project, repo, GitCommand.FETCH);
-        final GitCommandResult result = Git.getInstance().runCommand(fetchCmd);
+    private boolean fetchRepository(final Path repo, final Project project, @Nullable final String shallowBranch) throws IOException {
+        log.info(String.format("Fetching repository %s", repo));
+        final GitLineHandler fetchCmd = new GitLineHandler(project, repo.toFile(), GitCommand.FETCH);
+        if (shallowBranch != null) {
+            // Only fetch the newest commit of the configured branch instead of every ref of the remote
+            final String remoteBranch = getRemoteBranchName(shallowBranch);
+            fetchCmd.addParameters("--depth=1", "--no-tags", GIT_DEFAULT_REMOTE);
+            fetchCmd.addParameters(String.format("+refs/heads/%s:refs/remotes/%s/%s", remoteBranch, GIT_DEFAULT_REMOTE, remoteBranch));
+        }
+        final GitCommandResult result;
+        try (final SyncMetrics.Timer ignored = SyncMetrics.getInstance().start(SyncPhase.FETCH)) {
+            result = runGit(fetchCmd, GitOperation.FETCH);
+        }
         if (!result.success()) {
             throw new IOException(String.format("Failed to fetch repo: %s", result.getErrorOutputAsHtmlString()));
         }
         return true;
     }
 
-    private void checkoutAndResetBranch(final VirtualFile repo, final Project project, final String branchName) throws IOException {
-        final Git git = Git.getInstance();
-        // Get the commit hash of the newest commit on the configured branch of the remote
-        final GitLineHandler hashCmd = new GitLineHandler(project, repo, GitCommand.REV_PARSE);
-        hashCmd.addParameters(branchName);
-        final Optional<String> maybeHash = Optional.of(git.runCommand(hashCmd))
+    private void schedulePrefetch(final long baseDelayMillis) {
+        if (disposed) {
+            return;
+        }
+        // Jitter the interval so IDEs that were started together don't all hit the remote at the same time
+        final long delay = baseDelayMillis + ThreadLocalRandom.current().nextLong(baseDelayMillis / 4 + 1);
+        prefetchFuture = AppExecutorUtil.getAppScheduledExecutorService().schedule(this::prefetch, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void prefetch() {
+        long nextDelay = PREFETCH_INTERVAL_MILLIS;
+        try {
+            final AppSettingsState state = AppSettingsState.getInstance();
+            if (state.repositoryUrl == null || state.branch == null) {
+                return;
+            }
+            if (IdeEventQueue.getInstance().getIdleTime() < IDLE_THRESHOLD_MILLIS) {
+                nextDelay = PREFETCH_IDLE_RETRY_MILLIS;
+                return;
+            }
+            // Don't queue up behind a sync, it's fetching anyway
+            if (!lock.tryLock()) {
+                return;
+            }
+            try {
+                prefetchRemoteHead(state.repositoryUrl, state.branch);
+            } finally {
+                lock.unlock();
+            }
+            prefetchFailures = 0;
+        } catch (final IOException | RuntimeException e) {
+            prefetchFailures++;
+            nextDelay = Math.min(PREFETCH_INTERVAL_MILLIS << Math.min(prefetchFailures, 10), PREFETCH_MAX_BACKOFF_MILLIS);
+            log.info(String.format("Failed to prefetch shared settings, retrying in %d minutes: %s", TimeUnit.MILLISECONDS.toMinutes(nextDelay), e.getMessage()));
+        } finally {
+            schedulePrefetch(nextDelay);
+        }
+    }
+
+    private void prefetchRemoteHead(final String url, final String branch) throws IOException {
+        final Optional<Path> maybePath = getRepositoryPath();
+        if (maybePath.isEmpty()) {
+            return;
+        }
+        final Path repo = maybePath.get();
+        final Project project = ProjectManager.getInstance().getDefaultProject();
+        // ls-remote only transfers the refs, which is much cheaper than a fetch that finds nothing new
+        // Goes through the circuit breaker so a successful background check lets automatic syncs use the remote again
+        final Optional<String> remoteHead = callRemote(url, () -> getRemoteHead(project, url, branch));
+        if (remoteHead.isEmpty()) {
+            return;
+        }
+        final Optional<String> localHead = resolveCommit(repo, project, branch);
+        if (!remoteHead.equals(localHead)) {
+            log.info(String.format("Remote branch %s moved to %s, prefetching", branch, remoteHead.get()));
+            callRemote(url, () -> fetchRepository(repo, project, AppSettingsState.getInstance().shallowClone ? branch : null));
+        }
+        lastRemoteCheck = new RemoteHeadCheck(url, branch, remoteHead.get(), System.currentTimeMillis());
+    }
+
+    private CircuitBreaker getCircuitBreaker(final String url) {
+        return circuitBreakers.computeIfAbsent(url, u -> new CircuitBreaker());
+    }
+
+    // Records the outcome of a call that talks to the remote. Cancelled calls don't say anything about the remote, and
+    // neither do failures the remote answered with, like a rejected login or a missing branch. Those are reported as is
+    // instead of falling back to the last applied settings
+    private <T> T callRemote(final String url, final ThrowableComputable<T, IOException> call) throws IOException {
+        final CircuitBreaker breaker = getCircuitBreaker(url);
+        final T result;
+        try {
+            result = call.compute();
+        } catch (final RemoteUnavailableException e) {
+            throw e;
+        } catch (final IOException e) {
+            if (!isUnreachable(e)) {
+                breaker.recordSuccess();
+                throw e;
+            }
+            breaker.recordFailure();
+            throw new RemoteUnavailableException(url, breaker.getRetryAtMillis(), e);
+        }
+        breaker.recordSuccess();
+        return result;
+    }
+
+    private static boolean isUnreachable(final IOException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            final String message = cause.getMessage();
+            if (message == null) {
+                continue;
+            }
+            final String lowerCase = message.toLowerCase(Locale.ROOT);
+            if (UNREACHABLE_MARKERS.stream().anyMatch(lowerCase::contains)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isRemoteCheckFresh(final String url, final String branch) {
+        final RemoteHeadCheck check = lastRemoteCheck;
+        return check != null
+                && check.url().equals(url)
+                && check.branch().equals(branch)
+                && System.currentTimeMillis() - check.checkedAt() < REMOTE_CHECK_FRESHNESS_MILLIS;
+    }
+
+    private Optional<String> getRemoteUrl(final Project project, final Path repo) throws IOException {
+        // Usually read from .git/config instead of starting git just to ask for it. When the remote isn't found there,
+        // e.g. because it's configured in an included file, git is asked before the repository is thrown away
+        final Optional<String> configured = GitDirectory.readRemoteUrl(repo.resolve(GitUtil.DOT_GIT), GIT_DEFAULT_REMOTE);
+        if (configured.isPresent()) {
+            return configured;
+        }
+        final GitLineHandler remoteGetUrl = new GitLineHandler(project, repo.toFile(), GitCommand.REMOTE);
+        remoteGetUrl.addParameters("get-url");
+        remoteGetUrl.addParameters(GIT_DEFAULT_REMOTE);
+        final GitCommandResult result = runGit(remoteGetUrl, GitOperation.LOCAL);
+        if (!result.success()) {
+            throw new IOException("Failed to check remote: " + result.getErrorOutputAsHtmlString());
+        }
+        return result.getOutput()
+                .stream()
+                .findFirst();
+    }
+
+    private Optional<String> getRemoteHead(final Project project, final String url, final String branch) throws IOException {
+        final Path workingDir = getSharedSettingsLocation();
+        Files.createDirectories(workingDir);
+        final GitLineHandler lsRemoteCmd = new GitLineHandler(project, workingDir.toFile(), GitCommand.LS_REMOTE);
+        lsRemoteCmd.setUrl(url);
+        lsRemoteCmd.endOptions();
+        lsRemoteCmd.addParameters(url, REMOTE_HEADS_PREFIX + getRemoteBranchName(branch));
+        final GitCommandResult result;
+        try (final SyncMetrics.Timer ignored = SyncMetrics.getInstance().start(SyncPhase.REMOTE_CHECK)) {
+            result = runGit(lsRemoteCmd, GitOperation.REMOTE_QUERY);
+        }
+        if (!result.success()) {
+            throw new IOException("Failed to check remote branch: " + result.getErrorOutputAsJoinedString());
+        }
+        return result.getOutput().stream()
+                .map(line -> line.split("\\s+")[0])
+                .filter(hash -> !hash.isBlank())
+                .findFirst();
+    }
+
+    private Optional<String> resolveCommit(final Path repo, final Project project, final String revision) throws IOException {
+        // Most of the time the ref is a plain file or in packed-refs, only start git when it isn't
+        final Optional<String> hash = GitDirectory.resolveRef(repo.resolve(GitUtil.DOT_GIT), revision);
+        if (hash.isPresent()) {
+            return hash;
+        }
+        final GitLineHandler hashCmd = new GitLineHandler(project, repo.toFile(), GitCommand.REV_PARSE);
+        hashCmd.addParameters(revision);
+        return Optional.of(runGit(hashCmd, GitOperation.LOCAL))
                 .filter(GitCommandResult::success)
                 .map(GitCommandResult::getOutput)
                 .filter(output -> !output.isEmpty())
                 .map(output -> output.get(0))
                 .filter(hash -> !hash.isBlank());
+    }
+
+    private String checkoutAndResetBranch(final Path repo, final Project project, final String branchName, final boolean thorough) throws IOException {
+        // Get the commit hash of the newest commit on the configured branch of the remote
+        final Optional<String> maybeHash = resolveCommit(repo, project, branchName);
 
         if (maybeHash.isEmpty()) {
             throw new IOException(String.format("Failed to checkout branch %s because the remote does not have any commits", branchName));
         }
         final String hash = maybeHash.get();
+        // The commit is already checked out. Automatic syncs trust the working tree in that case, one the user asked for
+        // still resets it
+        if (!thorough && GitDirectory.readDetachedHead(repo.resolve(GitUtil.DOT_GIT)).filter(hash::equals).isPresent()) {
+            return hash;
+        }
         // Checkout the commit hash. We don't need to actually be on a branch here, and it was easier to just checkout the commit directly
-        final GitLineHandler h = new GitLineHandler(project, repo, GitCommand.CHECKOUT);
+        final GitLineHandler h = new GitLineHandler(project, repo.toFile(), GitCommand.CHECKOUT);
         h.addParameters("--force");
         h.addParameters(String.format("%s^0", hash));
         h.endOptions();
-        final GitCommandResult result = git.runCommand(h);
+        final GitCommandResult result;
+        try (final SyncMetrics.Timer ignored = SyncMetrics.getInstance().start(SyncPhase.CHECKOUT)) {
+            result = runGit(h, GitOperation.LOCAL);
+        }
         if (!result.success()) {
             throw new IOException(String.format("Failed to checkout branch %s: %s", branchName, result.getErrorOutputAsJoinedString()));
         }
-        try {
-            // Cleanup untracked files. This shouldn't really be needed unless someone was messing around in IntelliJ's config
-            for (final FilePath path : git.untrackedFilePaths(project, repo, null)) {
-                final Path file = Path.of(path.getPath());
+        try (final SyncMetrics.Timer ignored = SyncMetrics.getInstance().start(SyncPhase.UNTRACKED_CLEANUP)) {
+            // Cleanup untracked files. This shouldn't really be needed unless someone was messing around in IntelliJ's config.
+            // Listed with ls-files instead of git4idea, which needs the folder in the VFS and would refresh it on every sync
+            final GitLineHandler lsFilesCmd = new GitLineHandler(project, repo.toFile(), GitCommand.LS_FILES);
+            lsFilesCmd.addParameters("--others", "--exclude-standard", "-z");
+            final GitCommandResult lsFilesResult = runGit(lsFilesCmd, GitOperation.LOCAL);
+            if (!lsFilesResult.success()) {
+                throw new IOException(String.format("Failed to cleanup untracked files in %s: %s", repo, lsFilesResult.getErrorOutputAsJoinedString()));
+            }
+            // With -z the paths are separated by NUL and never quoted, only a path containing a newline spans lines
+            for (final String untracked : String.join("\n", lsFilesResult.getOutput()).split("\0")) {
+                ProgressManager.checkCanceled();
+                if (untracked.isEmpty()) {
+                    continue;
+                }
+                final Path file = repo.resolve(untracked);
                 if (!Files.exists(file)) {
                     continue;
                 }
                 PathUtils.delete(file);
             }
-        } catch (final VcsException e) {
-            throw new IOException(String.format("Failed to cleanup untracked files in %s: %s", repo.getPath(), e.getMessage()), e);
         }
+        return hash;
+    }
+
+    private static boolean useObjectStore() {
+        // cat-file is run directly, which only works with a git executable on this machine (e.g. not inside WSL)
+        return AppSettingsState.getInstance().readFromObjectStore
+                && GitExecutableManager.getInstance().getExecutable(null) instanceof GitExecutable.Local;
+    }
+
+    // Records the commit without touching the working tree, so the synced commit is known after a restart
+    private String recordObjectStoreHead(final Path repo, final Project project, final String branchName) throws IOException {
+        final Optional<String> maybeHash = resolveCommit(repo, project, branchName);
+        if (maybeHash.isEmpty()) {
+            throw new IOException(String.format("Failed to resolve branch %s because the remote does not have any commits", branchName));
+        }
+        Files.writeString(repo.resolve(GitUtil.DOT_GIT).resolve(OBJECT_STORE_HEAD_FILE), maybeHash.get() + "\n", StandardCharsets.US_ASCII);
+        return maybeHash.get();
+    }
+
+    private Map<String, String> listTree(final Path repoPath, final Project project, final String commit) throws IOException {
+        final GitLineHandler lsTreeCmd = new GitLineHandler(project, repoPath.toFile(), GitCommand.LS_TREE, List.of("core.quotePath=false"));
+        lsTreeCmd.addParameters("-r", "--full-tree", commit);
+        lsTreeCmd.endOptions();
+        lsTreeCmd.addParameters(ProfileUpdateService.getInstance().getSyncedRepositoryPaths());
+        final GitCommandResult result = runGit(lsTreeCmd, GitOperation.LOCAL);
+        if (!result.success()) {
+            throw new IOException(String.format("Failed to list files of commit %s: %s", commit, result.getErrorOutputAsJoinedString()));
+        }
+        // Each line looks like "<mode> blob <id>\t<path>"
+        final Map<String, String> blobIds = new HashMap<>();
+        for (final String line : result.getOutput()) {
+            final int tab = line.indexOf('\t');
+            final String[] parts = tab < 0 ? new String[0] : line.substring(0, tab).split(" ");
+            if (parts.length == 3 && "blob".equals(parts[1])) {
+                blobIds.put(line.substring(tab + 1), parts[2]);
+            }
+        }
+        return blobIds;
     }
 
-    private List<String> listRepoBranches(final VirtualFile repo, final Project project) throws IOException {
-        final GitLineHandler branchCmd = new GitLineHandler(project, repo, GitCommand.BRANCH);
-        branchCmd.addParameters("-r");
-        final GitCommandResult branchResult = Git.getInstance().runCommand(branchCmd);
-        if (!branchResult.success()) {
-            throw new IOException("Failed to list branches: " + branchResult.getErrorOutputAsHtmlString());
+    private void closeObjectReaders() {
+        synchronized (objectStoreLock) {
+            objectReaders.values().forEach(GitObjectReader::close);
+            objectReaders.clear();
+            objectSources.clear();
         }
-        return branchResult.getOutput().stream()
-                .map(String::trim)
-                .filter(s -> !s.contains(" ")) // This will filter out remote HEAD branches which we don't want
+    }
+
+    private List<String> listRemoteBranches(final Project project, final String url) throws IOException {
+        // ls-remote talks to the remote directly so it doesn't need a local clone, it just needs some directory to run in
+        final Path workingDir = getSharedSettingsLocation();
+        Files.createDirectories(workingDir);
+        final GitLineHandler lsRemoteCmd = new GitLineHandler(project, workingDir.toFile(), GitCommand.LS_REMOTE);
+        lsRemoteCmd.setUrl(url);
+        lsRemoteCmd.addParameters("--heads");
+        lsRemoteCmd.endOptions();
+        lsRemoteCmd.addParameters(url);
+        final GitCommandResult result = runGit(lsRemoteCmd, GitOperation.REMOTE_QUERY);
+        if (!result.success()) {
+            throw new IOException("Failed to list branches: " + result.getErrorOutputAsHtmlString());
+        }
+        // Each line looks like "<hash>\trefs/heads/<branch>". Branches are reported the same way git branch -r lists
+        // them so previously configured branches stay valid
+        return result.getOutput().stream()
+                .map(line -> line.substring(line.indexOf('\t') + 1).trim())
+                .filter(ref -> ref.startsWith(REMOTE_HEADS_PREFIX))
+                .map(ref -> GIT_DEFAULT_REMOTE + "/" + ref.substring(REMOTE_HEADS_PREFIX.length()))
+                .sorted()
+                .toList();
+    }
+
+    private void deleteLegacyTestRepository() throws IOException {
+        final Path path = getSharedSettingsLocation().resolve(LEGACY_TEST_REPO_FOLDER);
+        if (Files.exists(path)) {
+            log.info(String.format("Deleting unused branch listing repository at %s", path));
+            PathUtils.deleteDirectory(path);
+        }
+    }
+
+    private boolean cloneRepository(final Project project, final Path repo, final String url, @Nullable final String shallowBranch) throws IOException {
+        log.info(String.format("Cloning repository from %s to %s", url, repo));
+        try (final SyncMetrics.Timer ignored = SyncMetrics.getInstance().start(SyncPhase.CLONE)) {
+            return doCloneRepository(project, repo, url, shallowBranch);
+        } catch (final IOException | ProcessCanceledException e) {
+            // A clone that was stopped halfway would otherwise be picked up as a valid repository by the next sync
+            if (Files.exists(repo)) {
+                PathUtils.deleteDirectory(repo);
+            }
+            throw e;
+        }
+    }
+
+    private boolean doCloneRepository(final Project project, final Path repo, final String url, @Nullable final String shallowBranch) throws IOException {
+        if (shallowBranch == null) {
+            gitProcessCount.incrementAndGet();
+            final GitCommandEvent event = new GitCommandEvent();
+            event.begin();
+            boolean cloned = false;
+            try {
+                cloned = Cancellation.withTimeout("git clone", GitOperation.CLONE.getTimeoutSeconds(),
+                        () -> GitCheckoutProvider.doClone(project, Git.getInstance(), repo.getFileName().toString(), repo.getParent().toString(), url));
+                return cloned;
+            } finally {
+                event.end();
+                if (event.shouldCommit()) {
+                    // doClone doesn't report the exit code
+                    event.command = GitCommand.CLONE.name();
+                    event.commandLine = String.format("git clone %s %s", url, repo.getFileName());
+                    event.exitCode = -1;
+                    event.success = cloned;
+                    event.commit();
+                }
+            }
+        }
+        final GitLineHandler cloneCmd = new GitLineHandler(project, repo.getParent().toFile(), GitCommand.CLONE);
+        cloneCmd.setUrl(url);
+        cloneCmd.addParameters("--depth=1", "--single-branch", "--no-tags", "--no-checkout");
+        cloneCmd.addParameters("--origin", GIT_DEFAULT_REMOTE, "--branch", getRemoteBranchName(shallowBranch));
+        cloneCmd.endOptions();
+        cloneCmd.addParameters(url, repo.getFileName().toString());
+        final GitCommandResult result = runGit(cloneCmd, GitOperation.CLONE);
+        if (!result.success()) {
+            log.warn(String.format("Failed to clone %s: %s", url, result.getErrorOutputAsJoinedString()));
+            return false;
+        }
+        configureSparseCheckout(project, repo);
+        return true;
+    }
+
+    private void configureSparseCheckout(final Project project, final Path repo) throws IOException {
+        // Only the folders and files the plugin reads are materialized when the commit is checked out
+        final GitLineHandler configCmd = new GitLineHandler(project, repo.toFile(), GitCommand.CONFIG);
+        configCmd.addParameters("core.sparseCheckout", "true");
+        final GitCommandResult result = runGit(configCmd, GitOperation.LOCAL);
+        if (!result.success()) {
+            throw new IOException(String.format("Failed to enable sparse checkout: %s", result.getErrorOutputAsJoinedString()));
+        }
+        final Path sparseFile = repo.resolve(GitUtil.DOT_GIT).resolve(SPARSE_CHECKOUT_FILE);
+        Files.createDirectories(sparseFile.getParent());
+        final List<String> patterns = ProfileUpdateService.getInstance().getSyncedRepositoryPaths().stream()
+                .map(p -> "/" + p)
                 .toList();
+        Files.write(sparseFile, patterns, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isGitRepository(final Path repo) {
+        return Files.isDirectory(repo.resolve(GitUtil.DOT_GIT));
+    }
+
+    private GitCommandResult runGit(final GitLineHandler handler, final GitOperation operation) throws IOException {
+        gitProcessCount.incrementAndGet();
+        if (operation != GitOperation.LOCAL) {
+            handler.addCustomEnvironmentVariable("LANGUAGE", "C");
+            handler.addCustomEnvironmentVariable("LC_ALL", "C");
+        }
+        final GitCommandEvent event = new GitCommandEvent();
+        event.begin();
+        GitCommandResult result = null;
+        try {
+            result = Cancellation.withTimeout(String.format("git %s", handler.getCommand().name()), operation.getTimeoutSeconds(),
+                    () -> Git.getInstance().runCommand(handler));
+            return result;
+        } finally {
+            event.end();
+            // Commands that timed out or were cancelled are recorded as well, they're the ones that explain a stalled sync
+            if (event.shouldCommit()) {
+                event.command = handler.getCommand().name();
+                event.commandLine = handler.printableCommandLine();
+                event.exitCode = result == null ? -1 : result.getExitCode();
+                event.success = result != null && result.success();
+                event.commit();
+            }
+        }
     }
 
-    private boolean cloneRepository(final Project project, final VirtualFile file, final String url) {
-        log.info(String.format("Cloning repository from %s to %s", url, file.getPath()));
-        return GitCheckoutProvider.doClone(project, Git.getInstance(), file.getName(), file.getParent().getPath(), url);
+    private static boolean isSparseRepository(final Path repo) {
+        // The sparse checkout patterns are only written for repositories cloned in shallow mode, so they tell us which
+        // mode an existing clone was created with
+        return Files.exists(repo.resolve(GitUtil.DOT_GIT).resolve(SPARSE_CHECKOUT_FILE));
+    }
+
+    private static String getRemoteBranchName(final String branch) {
+        // Branches are stored as they are listed by git branch -r, e.g. origin/main
+        final String prefix = GIT_DEFAULT_REMOTE + "/";
+        return branch.startsWith(prefix) ? branch.substring(prefix.length()) : branch;
     }
 
     private void deleteRepository(final String repoFolder) throws IOException {
@@ -205,6 +772,37 @@ public class GitRepoServiceImpl implements GitRepoService, Disposable {
 
     @Override
     public void dispose() {
+        disposed = true;
+        final ScheduledFuture<?> future = prefetchFuture;
+        if (future != null) {
+            future.cancel(false);
+        }
+        closeObjectReaders();
+    }
+
+    // Operations that talk to the remote can take much longer than the ones that only touch the local repository, so
+    // each kind has its own timeout
+    private enum GitOperation {
+        CLONE,
+        FETCH,
+        REMOTE_QUERY,
+        LOCAL;
+
+        private int getTimeoutSeconds() {
+            final AppSettingsState state = AppSettingsState.getInstance();
+            final int timeout = switch (this) {
+                case CLONE, FETCH -> state.fetchTimeoutSeconds;
+                case REMOTE_QUERY -> state.remoteQueryTimeoutSeconds;
+                case LOCAL -> state.localGitTimeoutSeconds;
+            };
+            return Math.max(1, timeout);
+        }
+    }
+
+    private record CachedBranches(List<String> branches, long fetchedAt) {
+    }
+
+    private record RemoteHeadCheck(String url, String branch, String hash, long checkedAt) {
     }
 
 }
@@ -0,0 +1,9 @@
+package net.cicchiello.intellij.settingsshare.service;
+
+import lombok.NonNull;
+
+// Durations are in milliseconds. The percentiles only cover the most recent samples, count and total cover everything
+// recorded since the IDE was started
+public record PhaseStatistics(@NonNull SyncPhase phase, long count, double totalMillis, double lastMillis,
+                              double p50Millis, double p90Millis, double p99Millis, double maxMillis) {
+}
@@ -0,0 +1,24 @@
+package net.cicchiello.intellij.settingsshare.service;
+
+import com.intellij.openapi.application.ApplicationManager;
+import lombok.NonNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.Optional;
+
+public interface ProfileIndexService {
+
+    static ProfileIndexService getInstance() {
+        return ApplicationManager.getApplication().getService(ProfileIndexService.class);
+    }
+
+    boolean isUpToDate(@NonNull final String profileFile, @NonNull final String digest, @NonNull final String profileName);
+
+    // The canonical digest of the profile in the file, as long as the file is still the one it was recorded for
+    Optional<String> getCanonicalDigest(@NonNull final String profileFile, @NonNull final String digest);
+
+    void recordImport(@NonNull final String profileFile, @NonNull final String digest, @NonNull final String profileName, @Nullable final String canonicalDigest);
+
+    void save() throws IOException;
+}
@@ -0,0 +1,109 @@
+package net.cicchiello.intellij.settingsshare.service;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import lombok.NonNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+public class ProfileIndexServiceImpl implements ProfileIndexService {
+
+    private static final Logger log = Logger.getInstance(ProfileIndexServiceImpl.class);
+    public static final String INDEX_FILE = "profileIndex.properties";
+    // Written by older versions, the canonical digests it held are part of the index now
+    private static final String LEGACY_SNAPSHOT_FILE = "profileSnapshot.bin";
+    private static final String SEPARATOR = ":";
+    private static final Pattern HEX = Pattern.compile("[0-9a-f]*");
+
+    private Properties index;
+    private boolean dirty;
+
+    @Override
+    public synchronized boolean isUpToDate(@NonNull final String profileFile, @NonNull final String digest, @NonNull final String profileName) {
+        return getEntry(profileFile)
+                .filter(entry -> entry.digest().equals(digest) && entry.profileName().equals(profileName))
+                .isPresent();
+    }
+
+    @Override
+    public synchronized Optional<String> getCanonicalDigest(@NonNull final String profileFile, @NonNull final String digest) {
+        return getEntry(profileFile)
+                .filter(entry -> entry.digest().equals(digest) && !entry.canonicalDigest().isEmpty())
+                .map(Entry::canonicalDigest);
+    }
+
+    @Override
+    public synchronized void recordImport(@NonNull final String profileFile, @NonNull final String digest, @NonNull final String profileName, @Nullable final String canonicalDigest) {
+        // Imports that didn't look at the content keep the canonical digest recorded for the same file before
+        final String canonical = canonicalDigest != null
+                ? canonicalDigest
+                : getCanonicalDigest(profileFile, digest).orElse("");
+        final String entry = String.join(SEPARATOR, digest, canonical, profileName);
+        final Object previous = getIndex().setProperty(profileFile, entry);
+        dirty |= !entry.equals(previous);
+    }
+
+    @Override
+    public synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        final Path indexPath = getIndexPath();
+        Files.createDirectories(indexPath.getParent());
+        // Written next to the index and moved over it, so a crash while saving can't leave half an index behind
+        final Path tempPath = indexPath.resolveSibling(INDEX_FILE + ".tmp");
+        try (final OutputStream os = Files.newOutputStream(tempPath)) {
+            index.store(os, "Shared settings profile index");
+        }
+        Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(indexPath.resolveSibling(LEGACY_SNAPSHOT_FILE));
+        dirty = false;
+    }
+
+    private Properties getIndex() {
+        if (index == null) {
+            index = new Properties();
+            final Path indexPath = getIndexPath();
+            if (Files.isRegularFile(indexPath)) {
+                try (final InputStream is = Files.newInputStream(indexPath)) {
+                    index.load(is);
+                } catch (final IOException e) {
+                    // A broken index only means we re-import everything once
+                    log.warn(String.format("Failed to read profile index %s", indexPath), e);
+                    index.clear();
+                }
+            }
+        }
+        return index;
+    }
+
+    // Entries are "<file digest>:<canonical digest>:<profile name>". Entries written before the canonical digest was
+    // added don't parse and are imported again once
+    private Optional<Entry> getEntry(final String profileFile) {
+        final String value = getIndex().getProperty(profileFile);
+        if (value == null) {
+            return Optional.empty();
+        }
+        final String[] parts = value.split(SEPARATOR, 3);
+        if (parts.length != 3 || !HEX.matcher(parts[1]).matches()) {
+            return Optional.empty();
+        }
+        return Optional.of(new Entry(parts[0], parts[1], parts[2]));
+    }
+
+    private static Path getIndexPath() {
+        return Path.of(PathManager.getConfigPath(), GitRepoServiceImpl.SHARED_SETTINGS_FOLDER, INDEX_FILE);
+    }
+
+    private record Entry(String digest, String canonicalDigest, String profileName) {
+    }
+}
@@ -0,0 +1,9 @@
+package net.cicchiello.intellij.settingsshare.service;
+
+import lombok.NonNull;
+import org.jetbrains.annotations.Nullable;
+
+// What ProfileScanner found in a profile file. profileName is the name stored in the file, which may differ from the
+// file name the profile is imported as. digest is the same value ContentDigest.elementDigest computes for the document
+public record ProfileScan(@NonNull String rootElement, @Nullable String version, @Nullable String profileName, @NonNull String digest) {
+}
@@ -0,0 +1,118 @@
+package net.cicchiello.intellij.settingsshare.service;
+
+import lombok.NonNull;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Objects;
+
+// Reads a profile file as a stream of XML events, so checking a profile only needs memory for the current element
+// instead of a DOM of the whole file
+public final class ProfileScanner {
+
+    private static final String VERSION_ATTRIBUTE = "version";
+    private static final String NAME_ATTRIBUTE = "name";
+    private static final String VALUE_ATTRIBUTE = "value";
+    private static final String OPTION_ELEMENT = "option";
+    // Inspection profiles store their name in an option instead of an attribute of the root element
+    private static final String NAME_OPTION = "myName";
+    private static final Comparator<String[]> ATTRIBUTE_ORDER = Comparator.<String[], String>comparing(a -> a[0])
+            .thenComparing(a -> a[1]);
+    // Factories aren't guaranteed to be thread safe and profiles are scanned concurrently
+    private static final ThreadLocal<XMLInputFactory> FACTORY = ThreadLocal.withInitial(ProfileScanner::createFactory);
+
+    private ProfileScanner() {
+    }
+
+    // Fails with an IOException if the file isn't well-formed XML
+    @NonNull
+    public static ProfileScan scan(@NonNull final InputStream in) throws IOException {
+        final MessageDigest digest = ContentDigest.newSha1();
+        final StringBuilder text = new StringBuilder();
+        String rootElement = null;
+        String version = null;
+        String profileName = null;
+        int depth = 0;
+        XMLStreamReader reader = null;
+        try {
+            reader = FACTORY.get().createXMLStreamReader(in);
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT -> {
+                        flushText(digest, text);
+                        depth++;
+                        final String name = reader.getLocalName();
+                        ContentDigest.updateElementStart(digest, Objects.toString(reader.getNamespaceURI(), ""), name);
+                        final List<String[]> attributes = new ArrayList<>(reader.getAttributeCount());
+                        for (int i = 0; i < reader.getAttributeCount(); i++) {
+                            attributes.add(new String[]{Objects.toString(reader.getAttributeNamespace(i), ""), reader.getAttributeLocalName(i), reader.getAttributeValue(i)});
+                        }
+                        attributes.sort(ATTRIBUTE_ORDER);
+                        for (final String[] attribute : attributes) {
+                            ContentDigest.updateAttribute(digest, attribute[0], attribute[1], attribute[2]);
+                        }
+                        if (depth == 1) {
+                            rootElement = name;
+                            version = reader.getAttributeValue(null, VERSION_ATTRIBUTE);
+                            profileName = reader.getAttributeValue(null, NAME_ATTRIBUTE);
+                        } else if (depth == 2 && OPTION_ELEMENT.equals(name) && NAME_OPTION.equals(reader.getAttributeValue(null, NAME_ATTRIBUTE))) {
+                            profileName = reader.getAttributeValue(null, VALUE_ATTRIBUTE);
+                        }
+                    }
+                    case XMLStreamConstants.END_ELEMENT -> {
+                        flushText(digest, text);
+                        depth--;
+                        ContentDigest.updateElementEnd(digest);
+                    }
+                    // Adjacent character data ends up as a single text node when the document is loaded as a DOM
+                    case XMLStreamConstants.CHARACTERS, XMLStreamConstants.CDATA, XMLStreamConstants.SPACE -> {
+                        if (depth > 0) {
+                            text.append(reader.getText());
+                        }
+                    }
+                    default -> {
+                    }
+                }
+            }
+        } catch (final XMLStreamException e) {
+            throw new IOException(String.format("Not a well-formed profile: %s", e.getMessage()), e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (final XMLStreamException ignored) {
+                    // Only releases the reader's own state, the stream is closed by the caller
+                }
+            }
+        }
+        if (rootElement == null) {
+            throw new IOException("Not a well-formed profile: the file does not contain an XML element");
+        }
+        return new ProfileScan(rootElement, version, profileName, HexFormat.of().formatHex(digest.digest()));
+    }
+
+    private static void flushText(final MessageDigest digest, final StringBuilder text) {
+        if (text.length() > 0) {
+            ContentDigest.updateText(digest, text.toString());
+            text.setLength(0);
+        }
+    }
+
+    private static XMLInputFactory createFactory() {
+        final XMLInputFactory factory = XMLInputFactory.newDefaultFactory();
+        // Profiles never need a DTD and resolving external entities would let a shared file read local files
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        return factory;
+    }
+}
@@ -0,0 +1,26 @@
+package net.cicchiello.intellij.settingsshare.service;
+
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+
+// Read access to the shared settings files of the synced commit, either through the checked out working tree or
+// straight from the git object store. Paths are relative to the repository root and always use '/'
+public interface ProfileSource {
+
+    // Names of the files directly inside the folder, sorted
+    @NonNull
+    List<String> listFiles(@NonNull final String folder) throws IOException;
+
+    boolean exists(@NonNull final String path) throws IOException;
+
+    // The git blob id of the file when it is known without reading the file. It's the same value
+    // ContentDigest.gitBlobHash computes from the content
+    @NonNull
+    Optional<String> getBlobId(@NonNull final String path);
+
+    @NonNull
+    byte[] readFile(@NonNull final String path) throws IOException;
+}
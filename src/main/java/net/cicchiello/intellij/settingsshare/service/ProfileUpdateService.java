@@ -5,12 +5,16 @@ import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.project.Project;
 import lombok.NonNull;
 import net.cicchiello.intellij.settingsshare.action.SettingChangedListener;
+import net.cicchiello.intellij.settingsshare.settings.ProfileImport;
 import net.cicchiello.intellij.settingsshare.settings.SyncedSetting;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 
 public interface ProfileUpdateService {
 
@@ -18,11 +22,29 @@ public interface ProfileUpdateService {
         return ApplicationManager.getApplication().getService(ProfileUpdateService.class);
     }
 
-    Multimap<SyncedSetting, String> importGlobalProfilesFromPath(@NonNull final Path path, @NonNull final Project project) throws IOException;
+    Multimap<SyncedSetting, String> importGlobalProfilesFromPath(@NonNull final Path path, @NonNull final Project project, @Nullable final Set<String> changedFiles) throws IOException;
+
+    List<ProfileImport> prepareProfiles(@NonNull final SyncedSetting setting, @NonNull final Path path, final boolean force) throws IOException;
+
+    void persistProfiles(@NonNull final List<ProfileImport> imports) throws IOException;
 
     Map<SyncedSetting, String> enforceSettings(@NonNull final Path path, @NonNull final Project project) throws IOException;
 
     Optional<String> enforceSetting(@NonNull SyncedSetting setting, @NonNull Project project, @NonNull Path repoPath) throws IOException;
 
+    Optional<String> enforceSetting(@NonNull SyncedSetting setting, @NonNull Project project, @NonNull EnforcementRules rules);
+
+    EnforcementRules loadEnforcementRules(@NonNull final Path path) throws IOException;
+
+    EnforcementRules getEnforcementRules(@NonNull final Path path) throws IOException;
+
+    // Merges the shared settings of the layers into a single folder, later layers overriding earlier ones. The commit of
+    // the result identifies the combination of layer commits
+    RepositoryCheckout mergeLayers(@NonNull final List<RepositoryCheckout> layers) throws IOException;
+
+    Optional<Path> getMergedLayers(@NonNull final String commit);
+
+    List<String> getSyncedRepositoryPaths();
+
     void addEnforcementListeners(@NonNull final Project project, @NonNull final SettingChangedListener listener);
 }
@@ -3,28 +3,59 @@ package net.cicchiello.intellij.settingsshare.service;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Multimap;
 import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Disposer;
+import com.intellij.util.concurrency.AppExecutorUtil;
 import lombok.NonNull;
+import net.cicchiello.intellij.settingsshare.AppSettingsState;
 import net.cicchiello.intellij.settingsshare.action.SettingChangedListener;
+import net.cicchiello.intellij.settingsshare.diagnostics.EnforceSettingEvent;
+import net.cicchiello.intellij.settingsshare.settings.ProfileImport;
 import net.cicchiello.intellij.settingsshare.settings.SyncedSetting;
+import org.apache.commons.io.file.PathUtils;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
 import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
 
 public class ProfileUpdateServiceImpl implements ProfileUpdateService, Disposable {
 
+    private static final Logger log = Logger.getInstance(ProfileUpdateServiceImpl.class);
     public static final String ENFORCED_PROPERTIES_FILE = "enforced.properties";
+    public static final String MERGED_FOLDER = "merged";
+    // Merged layers are kept for this many combinations of commits, so switching back and forth doesn't merge again
+    private static final int MERGED_CACHE_SIZE = 3;
     private static final ServiceLoader<SyncedSetting> settingsServiceLoader = ServiceLoader.load(SyncedSetting.class, SyncedSetting.class.getClassLoader());
     private final List<SyncedSetting> settings;
+    private volatile CachedEnforcementRules cachedRules;
+    private ExecutorService prepareExecutor;
+    private int prepareParallelism;
 
     public ProfileUpdateServiceImpl() {
         settings = settingsServiceLoader.stream()
@@ -34,54 +65,293 @@ public class ProfileUpdateServiceImpl implements ProfileUpdateService, Disposabl
     }
 
     @Override
-    public Multimap<SyncedSetting, String> importGlobalProfilesFromPath(@NonNull final Path path, @NonNull final Project project) throws IOException {
-        final Multimap<SyncedSetting, String> result = ArrayListMultimap.create();
+    public Multimap<SyncedSetting, String> importGlobalProfilesFromPath(@NonNull final Path path, @NonNull final Project project, @Nullable final Set<String> changedFiles) throws IOException {
+        final ProfileSource source = GitRepoService.getInstance().getProfileSource(path);
+        // Loaded first so the profiles that aren't enforced can be imported lazily
+        final EnforcementRules rules = loadEnforcementRules(path);
+        final List<ProfileImport> imports = new ArrayList<>();
         for (final SyncedSetting setting : settings) {
-            result.putAll(setting, setting.updateProfilesFromPath(path, project));
+            imports.addAll(setting.prepareImports(source, rules, changedFiles, false));
+        }
+        final Multimap<SyncedSetting, String> result = ArrayListMultimap.create();
+        try {
+            // Parsing is independent per file so it runs concurrently, but the results are installed in a single step
+            // on the EDT in a stable order
+            final List<ProfileImport> prepared = prepareConcurrently(imports);
+            // Last point the sync can be cancelled at, once profiles are installed they're also written to the config
+            ProgressManager.checkCanceled();
+            installProfiles(prepared);
+            writeProfiles(prepared);
+            prepared.forEach(profileImport -> result.put(profileImport.getSetting(), profileImport.getProfileName()));
+        } finally {
+            ProfileIndexService.getInstance().save();
         }
         return result;
     }
 
+    @Override
+    public List<ProfileImport> prepareProfiles(@NonNull final SyncedSetting setting, @NonNull final Path path, final boolean force) throws IOException {
+        try {
+            return prepareConcurrently(setting.prepareImports(GitRepoService.getInstance().getProfileSource(path), getEnforcementRules(path), null, force));
+        } finally {
+            ProfileIndexService.getInstance().save();
+        }
+    }
+
+    @Override
+    public void persistProfiles(@NonNull final List<ProfileImport> imports) throws IOException {
+        try {
+            writeProfiles(imports);
+        } finally {
+            ProfileIndexService.getInstance().save();
+        }
+    }
+
+    private static void writeProfiles(final List<ProfileImport> imports) throws IOException {
+        if (imports.isEmpty()) {
+            return;
+        }
+        // Everything imported by one sync is written in a single step
+        final ConfigWriteBatch batch = new ConfigWriteBatch();
+        for (final ProfileImport profileImport : imports) {
+            profileImport.persist(batch);
+        }
+        batch.commit();
+    }
+
+    private static void installProfiles(final List<ProfileImport> imports) {
+        if (imports.isEmpty()) {
+            return;
+        }
+        // Not while a modal dialog is open, the Settings dialog edits copies of the scheme models that installing would swap
+        // out from under it
+        ApplicationManager.getApplication().invokeAndWait(() -> imports.forEach(ProfileImport::install), ModalityState.NON_MODAL);
+    }
+
+    private List<ProfileImport> prepareConcurrently(final List<ProfileImport> imports) throws IOException {
+        if (imports.isEmpty()) {
+            return List.of();
+        }
+        final ExecutorService executor = getPrepareExecutor();
+        final List<Future<Boolean>> futures = imports.stream()
+                .map(profileImport -> executor.submit(Cancellation.withCurrentIndicator(profileImport::prepare)))
+                .toList();
+        final List<Boolean> changed = Cancellation.awaitAll(futures, "importing shared profiles");
+        final List<ProfileImport> toApply = new ArrayList<>();
+        for (int i = 0; i < imports.size(); i++) {
+            if (changed.get(i)) {
+                toApply.add(imports.get(i));
+            }
+        }
+        return toApply;
+    }
+
+    // Only replaced when the parallelism setting changes, the executor itself doesn't own any threads
+    private synchronized ExecutorService getPrepareExecutor() {
+        final int parallelism = Math.max(1, AppSettingsState.getInstance().importParallelism);
+        if (prepareExecutor == null || prepareParallelism != parallelism) {
+            prepareExecutor = AppExecutorUtil.createBoundedApplicationPoolExecutor("Shared Settings Profile Import", parallelism);
+            prepareParallelism = parallelism;
+        }
+        return prepareExecutor;
+    }
+
     @Override
     public Map<SyncedSetting, String> enforceSettings(@NonNull final Path path, @NonNull final Project project) throws IOException {
-        final Properties enforcedProfiles = readSettings(path);
+        final EnforcementRules rules = getEnforcementRules(path);
         final Map<SyncedSetting, String> enforcedSettings = new HashMap<>();
         for (final SyncedSetting setting : settings) {
-            if (enforcedProfiles.containsKey(setting.getConfigName())) {
-                setting.enforceSetting(enforcedProfiles.getProperty(setting.getConfigName()), project)
-                        .ifPresent(note -> enforcedSettings.put(setting, note));
-            }
+            ProgressManager.checkCanceled();
+            enforceSetting(setting, project, rules).ifPresent(note -> enforcedSettings.put(setting, note));
         }
         return enforcedSettings;
     }
 
     @Override
     public Optional<String> enforceSetting(@NonNull final SyncedSetting setting, @NonNull final Project project, @NonNull final Path repoPath) throws IOException {
-        final Properties enforcedProfiles = readSettings(repoPath);
-        if (enforcedProfiles.containsKey(setting.getConfigName())) {
-            return setting.enforceSetting(enforcedProfiles.getProperty(setting.getConfigName()), project);
-        }
-        return Optional.empty();
+        return enforceSetting(setting, project, getEnforcementRules(repoPath));
     }
 
     @Override
-    public void addEnforcementListeners(final @NonNull Project project, final @NonNull SettingChangedListener listener) {
-        settings.forEach(setting -> setting.addSettingChangedListener(project, listener));
+    public Optional<String> enforceSetting(@NonNull final SyncedSetting setting, @NonNull final Project project, @NonNull final EnforcementRules rules) {
+        final Optional<String> enforcedProfile = rules.getEnforcedProfile(setting.getConfigName());
+        if (enforcedProfile.isEmpty()) {
+            return Optional.empty();
+        }
+        final EnforceSettingEvent event = new EnforceSettingEvent();
+        event.begin();
+        Optional<String> result = null;
+        try {
+            result = setting.enforceSetting(enforcedProfile.get(), project);
+            return result;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.setting = setting.getHumanName();
+                event.project = project.getName();
+                event.profile = enforcedProfile.get();
+                event.completed = result != null;
+                event.changed = result != null && result.isPresent();
+                event.commit();
+            }
+        }
     }
 
-    private Properties readSettings(final Path path) throws IOException {
-        final Properties enforcedProfiles = new Properties();
+    @Override
+    public EnforcementRules loadEnforcementRules(@NonNull final Path path) throws IOException {
+        final ProfileSource source = GitRepoService.getInstance().getProfileSource(path);
+        if (!source.exists(ENFORCED_PROPERTIES_FILE)) {
+            cachedRules = new CachedEnforcementRules(path, null, -1, null, EnforcementRules.EMPTY);
+            return EnforcementRules.EMPTY;
+        }
+        final CachedEnforcementRules cached = cachedRules;
+        final Optional<String> blobId = source.getBlobId(ENFORCED_PROPERTIES_FILE);
+        if (blobId.isPresent()) {
+            // Read from the object store, the blob id already tells us whether the content changed
+            final EnforcementRules rules = cached != null && blobId.get().equals(cached.digest())
+                    ? cached.rules()
+                    : EnforcementRules.parse(source.readFile(ENFORCED_PROPERTIES_FILE));
+            cachedRules = new CachedEnforcementRules(path, null, -1, blobId.get(), rules);
+            return rules;
+        }
         final Path enforcedPath = path.resolve(ENFORCED_PROPERTIES_FILE);
-        if (!Files.isRegularFile(enforcedPath)) {
-            return enforcedProfiles;
+        final BasicFileAttributes attributes = Files.readAttributes(enforcedPath, BasicFileAttributes.class);
+        if (cached != null && cached.repoPath().equals(path) && attributes.lastModifiedTime().equals(cached.modified()) && attributes.size() == cached.size()) {
+            return cached.rules();
         }
-        try (final InputStream is = Files.newInputStream(enforcedPath)) {
-            enforcedProfiles.load(is);
+        final byte[] content = Files.readAllBytes(enforcedPath);
+        final String digest = ContentDigest.gitBlobHash(content);
+        // A checkout rewrites the file even when its content didn't change, so only parse it again if it really did
+        final EnforcementRules rules = cached != null && digest.equals(cached.digest())
+                ? cached.rules()
+                : EnforcementRules.parse(content);
+        cachedRules = new CachedEnforcementRules(path, attributes.lastModifiedTime(), attributes.size(), digest, rules);
+        return rules;
+    }
+
+    @Override
+    public EnforcementRules getEnforcementRules(@NonNull final Path path) throws IOException {
+        // The rules are reloaded by every sync, in between the checked out file can't change so there's no need to look
+        // at it again
+        final CachedEnforcementRules cached = cachedRules;
+        if (cached != null && cached.repoPath().equals(path)) {
+            return cached.rules();
+        }
+        return loadEnforcementRules(path);
+    }
+
+    @Override
+    public RepositoryCheckout mergeLayers(@NonNull final List<RepositoryCheckout> layers) throws IOException {
+        final String key = getLayersKey(layers);
+        final Path mergedRoot = getMergedRoot();
+        final Path merged = mergedRoot.resolve(key);
+        // Nothing is written when none of the layers changed since they were last merged
+        if (!Files.isDirectory(merged)) {
+            Files.createDirectories(mergedRoot);
+            final Path staging = Files.createTempDirectory(mergedRoot, "staging-");
+            try {
+                writeMergedLayers(layers, staging);
+                Files.move(staging, merged, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                if (Files.exists(staging)) {
+                    PathUtils.deleteDirectory(staging);
+                }
+            }
         }
-        return enforcedProfiles;
+        evictMergedLayers(mergedRoot, key);
+        return new RepositoryCheckout(merged, key);
+    }
+
+    @Override
+    public Optional<Path> getMergedLayers(@NonNull final String commit) {
+        final Path merged = getMergedRoot().resolve(commit);
+        return Files.isDirectory(merged) ? Optional.of(merged) : Optional.empty();
+    }
+
+    private void writeMergedLayers(final List<RepositoryCheckout> layers, final Path target) throws IOException {
+        final GitRepoService gitService = GitRepoService.getInstance();
+        // Profiles are overridden by file name, which is also their profile name, and enforced.properties by key
+        final Map<String, ProfileSource> files = new TreeMap<>();
+        final Map<String, String> enforced = new TreeMap<>();
+        boolean hasEnforced = false;
+        for (final RepositoryCheckout layer : layers) {
+            final ProfileSource source = gitService.getProfileSource(layer.path());
+            if (source.exists(ENFORCED_PROPERTIES_FILE)) {
+                enforced.putAll(EnforcementRules.parse(source.readFile(ENFORCED_PROPERTIES_FILE)).asMap());
+                hasEnforced = true;
+            }
+            for (final String syncedPath : getSyncedRepositoryPaths()) {
+                if (syncedPath.equals(ENFORCED_PROPERTIES_FILE)) {
+                    continue;
+                }
+                if (syncedPath.endsWith("/")) {
+                    final String folder = syncedPath.substring(0, syncedPath.length() - 1);
+                    for (final String fileName : source.listFiles(folder)) {
+                        files.put(folder + "/" + fileName, source);
+                    }
+                } else if (source.exists(syncedPath)) {
+                    files.put(syncedPath, source);
+                }
+            }
+        }
+        for (final Map.Entry<String, ProfileSource> entry : files.entrySet()) {
+            final Path file = target.resolve(entry.getKey());
+            Files.createDirectories(file.getParent());
+            Files.write(file, entry.getValue().readFile(entry.getKey()));
+        }
+        if (hasEnforced) {
+            final Properties properties = new Properties();
+            properties.putAll(enforced);
+            try (final OutputStream os = Files.newOutputStream(target.resolve(ENFORCED_PROPERTIES_FILE))) {
+                properties.store(os, String.format("Merged from %d repositories", layers.size()));
+            }
+        }
+    }
+
+    private static void evictMergedLayers(final Path mergedRoot, final String currentKey) throws IOException {
+        final List<Path> stale;
+        try (final Stream<Path> stream = Files.list(mergedRoot)) {
+            stale = stream
+                    .filter(path -> !path.getFileName().toString().equals(currentKey))
+                    .sorted(Comparator.comparingLong((Path path) -> path.toFile().lastModified()).reversed())
+                    .skip(MERGED_CACHE_SIZE - 1)
+                    .toList();
+        }
+        for (final Path path : stale) {
+            log.info(String.format("Deleting merged shared settings %s", path));
+            PathUtils.deleteDirectory(path);
+        }
+    }
+
+    private static String getLayersKey(final List<RepositoryCheckout> layers) {
+        final MessageDigest digest = ContentDigest.newSha1();
+        for (final RepositoryCheckout layer : layers) {
+            digest.update(String.format("%s:%s%n", layer.path().getFileName(), layer.commit()).getBytes(StandardCharsets.UTF_8));
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static Path getMergedRoot() {
+        return Path.of(PathManager.getConfigPath(), GitRepoServiceImpl.SHARED_SETTINGS_FOLDER, MERGED_FOLDER);
+    }
+
+    @Override
+    public List<String> getSyncedRepositoryPaths() {
+        final List<String> paths = new ArrayList<>();
+        paths.add(ENFORCED_PROPERTIES_FILE);
+        settings.forEach(setting -> paths.addAll(setting.getRepositoryPaths()));
+        return paths;
+    }
+
+    @Override
+    public void addEnforcementListeners(final @NonNull Project project, final @NonNull SettingChangedListener listener) {
+        settings.forEach(setting -> setting.addSettingChangedListener(project, listener));
     }
 
     @Override
     public void dispose() {
     }
+
+    private record CachedEnforcementRules(Path repoPath, @Nullable FileTime modified, long size, @Nullable String digest, EnforcementRules rules) {
+    }
 }
@@ -0,0 +1,32 @@
+package net.cicchiello.intellij.settingsshare.service;
+
+import lombok.NonNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// The remote of a repository couldn't be reached, or wasn't called at all because it failed too often recently. Syncs
+// fall back to the settings that were applied last when they get this
+public class RemoteUnavailableException extends IOException {
+
+    private final String url;
+    private final long retryAtMillis;
+
+    public RemoteUnavailableException(@NonNull final String url, final long retryAtMillis, @Nullable final IOException cause) {
+        super(cause == null
+                ? String.format("Not contacting %s after repeated failures, retrying in %d minutes", url, Math.max(1, TimeUnit.MILLISECONDS.toMinutes(retryAtMillis - System.currentTimeMillis())))
+                : String.format("Unable to reach %s: %s", url, cause.getMessage()), cause);
+        this.url = url;
+        this.retryAtMillis = retryAtMillis;
+    }
+
+    @NonNull
+    public String getUrl() {
+        return url;
+    }
+
+    public long getRetryAtMillis() {
+        return retryAtMillis;
+    }
+}
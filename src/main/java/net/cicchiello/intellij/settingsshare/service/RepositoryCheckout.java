@@ -0,0 +1,8 @@
+package net.cicchiello.intellij.settingsshare.service;
+
+import lombok.NonNull;
+
+import java.nio.file.Path;
+
+public record RepositoryCheckout(@NonNull Path path, @NonNull String commit) {
+}
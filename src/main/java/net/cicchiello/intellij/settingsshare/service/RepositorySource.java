@@ -0,0 +1,7 @@
+package net.cicchiello.intellij.settingsshare.service;
+
+import lombok.NonNull;
+
+// One of the repositories shared settings are read from. branch is stored the way git branch -r lists it, e.g. origin/main
+public record RepositorySource(@NonNull String url, @NonNull String branch) {
+}
@@ -0,0 +1,28 @@
+package net.cicchiello.intellij.settingsshare.service;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.project.Project;
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.util.Optional;
+
+public interface SyncCoordinator {
+
+    static SyncCoordinator getInstance() {
+        return ApplicationManager.getApplication().getService(SyncCoordinator.class);
+    }
+
+    SyncResult sync(@NonNull final Project project, @NonNull final String url, @NonNull final String branch, final boolean forceFetch) throws IOException;
+
+    Optional<SyncResult> getLocalSnapshot() throws IOException;
+
+    boolean claimSessionRefresh();
+
+    boolean claimEnforcement(@NonNull final Project project, @NonNull final String commit);
+
+    void releaseEnforcement(@NonNull final Project project, @NonNull final String commit);
+
+    // Runs the revalidation after the delay unless one is already pending. A successful sync cancels it
+    void scheduleRevalidation(final long delayMillis, @NonNull final Runnable revalidation);
+}
@@ -0,0 +1,290 @@
+package net.cicchiello.intellij.settingsshare.service;
+
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Multimap;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import lombok.NonNull;
+import net.cicchiello.intellij.settingsshare.AppSettingsState;
+import net.cicchiello.intellij.settingsshare.settings.SyncedSetting;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class SyncCoordinatorImpl implements SyncCoordinator {
+
+    private static final Logger log = Logger.getInstance(SyncCoordinatorImpl.class);
+
+    private final Map<SyncKey, Flight> flights = new HashMap<>();
+    private final Object revalidationLock = new Object();
+    private ScheduledFuture<?> pendingRevalidation;
+    private final AtomicBoolean sessionRefreshClaimed = new AtomicBoolean();
+    // Commit each open project was last enforced against. Weak so closed projects don't leak
+    private final Map<Project, String> enforcedCommits = new WeakHashMap<>();
+
+    @Override
+    public SyncResult sync(@NonNull final Project project, @NonNull final String url, @NonNull final String branch, final boolean forceFetch) throws IOException {
+        final SyncKey key = new SyncKey(url, branch);
+        final Flight flight;
+        final CompletableFuture<SyncResult> future;
+        final CompletableFuture<SyncResult> runAfter;
+        final boolean joined;
+        synchronized (flights) {
+            flight = flights.computeIfAbsent(key, k -> new Flight());
+            if (flight.running == null) {
+                future = flight.running = new CompletableFuture<>();
+                flight.runningForceFetch = forceFetch;
+                runAfter = null;
+                joined = false;
+            } else if (flight.followUp == null) {
+                // A sync is already running but it may have read the repository before this request was made, so
+                // schedule a single follow-up run that every request arriving in the meantime will share
+                future = flight.followUp = new CompletableFuture<>();
+                flight.followUpForceFetch = forceFetch;
+                runAfter = flight.running;
+                joined = false;
+            } else {
+                future = flight.followUp;
+                flight.followUpForceFetch |= forceFetch;
+                runAfter = null;
+                joined = true;
+            }
+        }
+        if (joined) {
+            return await(future).asShared();
+        }
+        if (runAfter != null) {
+            try {
+                Cancellation.await(runAfter.handle((result, error) -> null));
+            } catch (final ProcessCanceledException | InterruptedException e) {
+                // Requests may already have joined the follow-up, so it still has to be finished once the running sync
+                // is done. It fails instead of running since the request that would have run it is gone
+                runAfter.handle((result, error) -> {
+                    finish(key, flight, future, null, new IOException("The shared settings sync was cancelled before it started", e));
+                    return null;
+                });
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for shared settings to sync", e);
+                }
+                throw (ProcessCanceledException) e;
+            } catch (final ExecutionException e) {
+                // handle() never completes exceptionally
+                throw new IllegalStateException(e);
+            }
+        }
+        final boolean fetch;
+        synchronized (flights) {
+            fetch = flight.runningForceFetch;
+        }
+
+        SyncResult result = null;
+        Throwable error = null;
+        try {
+            result = doSync(project, url, branch, fetch);
+        } catch (final Throwable e) {
+            error = e;
+        } finally {
+            finish(key, flight, future, result, error);
+        }
+        // The sync was cancelled by this caller, anybody who joined it gets an IOException from await instead
+        if (error instanceof ProcessCanceledException canceled) {
+            throw canceled;
+        }
+        return await(future);
+    }
+
+    private void finish(final SyncKey key, final Flight flight, final CompletableFuture<SyncResult> future, final SyncResult result, final Throwable error) {
+        synchronized (flights) {
+            flight.running = flight.followUp;
+            flight.runningForceFetch = flight.followUpForceFetch;
+            flight.followUp = null;
+            flight.followUpForceFetch = false;
+            if (flight.running == null) {
+                flights.remove(key);
+            }
+        }
+        // Only complete once the follow-up has been promoted so it can't start before requests stop joining it
+        if (error == null) {
+            future.complete(result);
+        } else {
+            future.completeExceptionally(error);
+        }
+    }
+
+    // The repository as it was left by the last successful sync. Only touches local files so it can be enforced before
+    // the network is available
+    @Override
+    public Optional<SyncResult> getLocalSnapshot() throws IOException {
+        final AppSettingsState state = AppSettingsState.getInstance();
+        final String appliedCommit = state.lastAppliedCommit;
+        final Optional<Path> maybePath;
+        final Optional<String> maybeCommit;
+        if (!getOverlays(state).isEmpty()) {
+            // With overlays the profiles were imported from the merged layers instead of the repository
+            maybeCommit = Optional.ofNullable(appliedCommit);
+            maybePath = maybeCommit.isEmpty() ? Optional.empty() : ProfileUpdateService.getInstance().getMergedLayers(appliedCommit);
+        } else {
+            maybePath = GitRepoService.getInstance().getRepositoryPath();
+            // The applied commit isn't known after upgrading from a version that didn't record it or after the repository
+            // settings changed, the checkout on disk is what was synced last in that case
+            maybeCommit = appliedCommit != null || maybePath.isEmpty()
+                    ? Optional.ofNullable(appliedCommit)
+                    : GitRepoService.getInstance().getSyncedCommit(maybePath.get());
+        }
+        if (maybePath.isEmpty() || maybeCommit.isEmpty()) {
+            return Optional.empty();
+        }
+        ProfileUpdateService.getInstance().loadEnforcementRules(maybePath.get());
+        return Optional.of(new SyncResult(maybePath.get(), maybeCommit.get(), ImmutableMultimap.of(), false, null));
+    }
+
+    @Override
+    public boolean claimSessionRefresh() {
+        return sessionRefreshClaimed.compareAndSet(false, true);
+    }
+
+    // Every project opened at startup triggers a sync over all open projects, this makes sure only the first of them
+    // actually enforces a given project
+    @Override
+    public boolean claimEnforcement(@NonNull final Project project, @NonNull final String commit) {
+        synchronized (enforcedCommits) {
+            return !commit.equals(enforcedCommits.put(project, commit));
+        }
+    }
+
+    @Override
+    public void releaseEnforcement(@NonNull final Project project, @NonNull final String commit) {
+        synchronized (enforcedCommits) {
+            enforcedCommits.remove(project, commit);
+        }
+    }
+
+    @Override
+    public void scheduleRevalidation(final long delayMillis, @NonNull final Runnable revalidation) {
+        synchronized (revalidationLock) {
+            // Every trigger that got a stale result asks for this, one pending revalidation covers all of them
+            if (pendingRevalidation != null && !pendingRevalidation.isDone()) {
+                return;
+            }
+            pendingRevalidation = AppExecutorUtil.getAppScheduledExecutorService().schedule(revalidation, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void cancelRevalidation() {
+        synchronized (revalidationLock) {
+            if (pendingRevalidation != null) {
+                pendingRevalidation.cancel(false);
+                pendingRevalidation = null;
+            }
+        }
+    }
+
+    private SyncResult doSync(final Project project, final String url, final String branch, final boolean forceFetch) throws IOException {
+        try (final SyncMetrics.Timer ignored = SyncMetrics.getInstance().start(SyncPhase.SYNC)) {
+            final SyncResult result = syncRepository(project, url, branch, forceFetch);
+            cancelRevalidation();
+            return result;
+        } catch (final RemoteUnavailableException e) {
+            // Keep using what was applied last while the remote can't be reached instead of failing the whole sync
+            final Optional<SyncResult> snapshot = getLocalSnapshot();
+            if (snapshot.isEmpty()) {
+                throw e;
+            }
+            log.info(String.format("Using shared settings from commit %s: %s", snapshot.get().commit(), e.getMessage()));
+            return snapshot.get().asStale(e);
+        }
+    }
+
+    private SyncResult syncRepository(final Project project, final String url, final String branch, final boolean forceFetch) throws IOException {
+        final AppSettingsState state = AppSettingsState.getInstance();
+        final GitRepoService gitService = GitRepoService.getInstance();
+        final ProfileUpdateService profileService = ProfileUpdateService.getInstance();
+
+        final List<RepositorySource> sources = new ArrayList<>();
+        sources.add(new RepositorySource(url, branch));
+        sources.addAll(getOverlays(state));
+        final boolean layered = sources.size() > 1;
+        final RepositoryCheckout checkout = layered
+                ? profileService.mergeLayers(gitService.updateAndCheckoutSources(project, sources, forceFetch))
+                : gitService.updateAndCheckoutBranch(project, url, branch, forceFetch);
+        ProgressManager.checkCanceled();
+        final Multimap<SyncedSetting, String> importedProfiles;
+        if (checkout.commit().equals(state.lastAppliedCommit)) {
+            // Nothing changed in the repository since the profiles were last imported
+            importedProfiles = ImmutableMultimap.of();
+        } else {
+            // Merged layers aren't a git commit, the profile index still skips every file that didn't change
+            final Set<String> changedFiles = state.lastAppliedCommit == null || layered
+                    ? null
+                    : gitService.getChangedFiles(project, state.lastAppliedCommit, checkout.commit()).orElse(null);
+            importedProfiles = profileService.importGlobalProfilesFromPath(checkout.path(), project, changedFiles);
+            state.lastAppliedCommit = checkout.commit();
+        }
+        // Read enforced.properties once here so enforcing every open project reuses the same rules
+        profileService.loadEnforcementRules(checkout.path());
+        return new SyncResult(checkout.path(), checkout.commit(), importedProfiles, false, null);
+    }
+
+    private static List<RepositorySource> getOverlays(final AppSettingsState state) {
+        if (state.overlayRepositories == null) {
+            return List.of();
+        }
+        return state.overlayRepositories.stream()
+                .filter(overlay -> overlay.url != null && overlay.branch != null)
+                .map(overlay -> new RepositorySource(overlay.url, overlay.branch))
+                // Duplicates would share a working copy and be updated at the same time
+                .distinct()
+                .toList();
+    }
+
+    private static SyncResult await(final CompletableFuture<SyncResult> future) throws IOException {
+        try {
+            return Cancellation.await(future);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for shared settings to sync", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof ProcessCanceledException) {
+                // Cancelled by whoever started the sync, which doesn't mean this caller was cancelled
+                throw new IOException("The shared settings sync was cancelled", cause);
+            }
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (cause instanceof Error err) {
+                throw err;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+    private record SyncKey(String url, String branch) {
+    }
+
+    private static class Flight {
+        private CompletableFuture<SyncResult> running;
+        private CompletableFuture<SyncResult> followUp;
+        private boolean runningForceFetch;
+        private boolean followUpForceFetch;
+    }
+}
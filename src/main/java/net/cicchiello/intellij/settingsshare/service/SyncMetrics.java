@@ -0,0 +1,29 @@
+package net.cicchiello.intellij.settingsshare.service;
+
+import com.intellij.openapi.application.ApplicationManager;
+import lombok.NonNull;
+
+import java.util.List;
+
+public interface SyncMetrics {
+
+    static SyncMetrics getInstance() {
+        return ApplicationManager.getApplication().getService(SyncMetrics.class);
+    }
+
+    // Use with try-with-resources, the time until the timer is closed is recorded for the phase
+    @NonNull
+    Timer start(@NonNull final SyncPhase phase);
+
+    void record(@NonNull final SyncPhase phase, final long durationNanos);
+
+    @NonNull
+    List<PhaseStatistics> getStatistics();
+
+    void reset();
+
+    interface Timer extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
@@ -0,0 +1,91 @@
+package net.cicchiello.intellij.settingsshare.service;
+
+import lombok.NonNull;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class SyncMetricsImpl implements SyncMetrics {
+
+    // Enough for meaningful percentiles while keeping the history of every phase to a few KB
+    private static final int HISTORY_SIZE = 256;
+
+    private final Map<SyncPhase, PhaseHistory> histories = new EnumMap<>(SyncPhase.class);
+
+    public SyncMetricsImpl() {
+        for (final SyncPhase phase : SyncPhase.values()) {
+            histories.put(phase, new PhaseHistory());
+        }
+    }
+
+    @NonNull
+    @Override
+    public Timer start(@NonNull final SyncPhase phase) {
+        final long start = System.nanoTime();
+        return () -> record(phase, System.nanoTime() - start);
+    }
+
+    @Override
+    public void record(@NonNull final SyncPhase phase, final long durationNanos) {
+        histories.get(phase).add(durationNanos);
+    }
+
+    @NonNull
+    @Override
+    public List<PhaseStatistics> getStatistics() {
+        return Arrays.stream(SyncPhase.values())
+                .map(phase -> histories.get(phase).toStatistics(phase))
+                .toList();
+    }
+
+    @Override
+    public void reset() {
+        histories.values().forEach(PhaseHistory::clear);
+    }
+
+    private static double toMillis(final long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    // Ring buffer of the most recent samples of a phase
+    private static final class PhaseHistory {
+
+        private final long[] samples = new long[HISTORY_SIZE];
+        private long count;
+        private long totalNanos;
+        private long lastNanos;
+
+        synchronized void add(final long durationNanos) {
+            samples[(int) (count % HISTORY_SIZE)] = durationNanos;
+            count++;
+            totalNanos += durationNanos;
+            lastNanos = durationNanos;
+        }
+
+        synchronized void clear() {
+            count = 0;
+            totalNanos = 0;
+            lastNanos = 0;
+        }
+
+        synchronized PhaseStatistics toStatistics(final SyncPhase phase) {
+            final long[] sorted = Arrays.copyOf(samples, (int) Math.min(count, HISTORY_SIZE));
+            Arrays.sort(sorted);
+            return new PhaseStatistics(phase, count, toMillis(totalNanos), toMillis(lastNanos),
+                    toMillis(percentile(sorted, 50)), toMillis(percentile(sorted, 90)), toMillis(percentile(sorted, 99)),
+                    toMillis(sorted.length == 0 ? 0 : sorted[sorted.length - 1]));
+        }
+
+        // Nearest rank percentile
+        private static long percentile(final long[] sorted, final int percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            final int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+            return sorted[Math.max(0, rank - 1)];
+        }
+    }
+}
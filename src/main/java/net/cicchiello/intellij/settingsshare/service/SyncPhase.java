@@ -0,0 +1,29 @@
+package net.cicchiello.intellij.settingsshare.service;
+
+import lombok.NonNull;
+
+public enum SyncPhase {
+    SYNC("Whole sync"),
+    REMOTE_CHECK("Remote check"),
+    CLONE("Clone"),
+    FETCH("Fetch"),
+    CHECKOUT("Checkout"),
+    UNTRACKED_CLEANUP("Untracked file cleanup"),
+    PRE_SCAN("Pre-scan profile file"),
+    PARSE("Parse profile file"),
+    COMPARE("Compare with installed profile"),
+    CONFIG_WRITE("Write config files"),
+    ENFORCE("Enforce project"),
+    NOTIFICATION("Notification");
+
+    private final String displayName;
+
+    SyncPhase(final String displayName) {
+        this.displayName = displayName;
+    }
+
+    @NonNull
+    public String getDisplayName() {
+        return displayName;
+    }
+}
@@ -0,0 +1,25 @@
+package net.cicchiello.intellij.settingsshare.service;
+
+import com.google.common.collect.Multimap;
+import lombok.NonNull;
+import net.cicchiello.intellij.settingsshare.settings.SyncedSetting;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Path;
+
+// staleCause is set when the remote couldn't be reached and the result describes the settings that were applied last
+public record SyncResult(@NonNull Path path, @NonNull String commit, @NonNull Multimap<SyncedSetting, String> importedProfiles, boolean shared, @Nullable RemoteUnavailableException staleCause) {
+
+    // A result handed to a request that joined a sync started by someone else
+    public SyncResult asShared() {
+        return new SyncResult(path, commit, importedProfiles, true, staleCause);
+    }
+
+    public SyncResult asStale(@NonNull final RemoteUnavailableException cause) {
+        return new SyncResult(path, commit, importedProfiles, shared, cause);
+    }
+
+    public boolean isStale() {
+        return staleCause != null;
+    }
+}
@@ -0,0 +1,46 @@
+package net.cicchiello.intellij.settingsshare.service;
+
+import lombok.NonNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+public record WorktreeProfileSource(@NonNull Path root) implements ProfileSource {
+
+    @NonNull
+    @Override
+    public List<String> listFiles(@NonNull final String folder) throws IOException {
+        final Path path = root.resolve(folder);
+        if (!Files.isDirectory(path)) {
+            return List.of();
+        }
+        try (final Stream<Path> stream = Files.list(path)) {
+            return stream
+                    .filter(Files::isRegularFile)
+                    .map(p -> p.getFileName().toString())
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    @Override
+    public boolean exists(@NonNull final String path) {
+        return Files.isRegularFile(root.resolve(path));
+    }
+
+    @NonNull
+    @Override
+    public Optional<String> getBlobId(@NonNull final String path) {
+        return Optional.empty();
+    }
+
+    @NonNull
+    @Override
+    public byte[] readFile(@NonNull final String path) throws IOException {
+        return Files.readAllBytes(root.resolve(path));
+    }
+}
@@ -2,11 +2,10 @@ package net.cicchiello.intellij.settingsshare.settings;
 
 import com.intellij.openapi.Disposable;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.options.SchemeDataHolder;
 import com.intellij.openapi.options.SchemeImportException;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.JDOMUtil;
-import com.intellij.openapi.vfs.LocalFileSystem;
-import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.psi.codeStyle.CodeStyleScheme;
 import com.intellij.psi.codeStyle.CodeStyleSchemes;
 import com.intellij.psi.codeStyle.CodeStyleSettings;
@@ -15,16 +14,20 @@ import com.intellij.psi.codeStyle.CodeStyleSettingsManager;
 import com.intellij.psi.impl.source.codeStyle.CodeStyleSchemeImpl;
 import com.intellij.psi.impl.source.codeStyle.CodeStyleSchemesImpl;
 import com.intellij.psi.impl.source.codeStyle.CodeStyleSettingsLoader;
+import com.intellij.testFramework.BinaryLightVirtualFile;
 import com.intellij.util.containers.ContainerUtil;
 import lombok.NonNull;
 import net.cicchiello.intellij.settingsshare.action.SettingChangedListener;
-import org.apache.commons.compress.utils.FileNameUtils;
+import net.cicchiello.intellij.settingsshare.service.ProfileScan;
+import org.jdom.Element;
+import org.jdom.JDOMException;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.nio.file.Path;
 import java.util.Optional;
 
-public class CodeStyleSyncedSetting extends ProfileSyncedSetting implements Disposable {
+public class CodeStyleSyncedSetting extends ProfileSyncedSetting<CodeStyleSchemeImpl> implements Disposable {
 
     public static final String CODESTYLE_PROFILE_FOLDER = "codestyles";
     public static final String CODESTYLE_SETTING_NAME = "CodeStyle";
@@ -58,48 +61,73 @@ public class CodeStyleSyncedSetting extends ProfileSyncedSetting implements Disp
 
     @Override
     public void addSettingChangedListener(final @NonNull Project project, final @NonNull SettingChangedListener listener) {
-        project.getMessageBus().connect(this).subscribe(CodeStyleSettingsListener.TOPIC, (CodeStyleSettingsListener) event -> listener.settingChanged(this, project));
+        project.getMessageBus().connect(this).subscribe(CodeStyleSettingsListener.TOPIC, (CodeStyleSettingsListener) event -> {
+            invalidateInstalledDigests();
+            listener.settingChanged(this, project);
+        });
     }
 
-    @NonNull
     @Override
-    public Path getProfilePath(@NonNull final Path basePath) {
-        return basePath.resolve(CODESTYLE_PROFILE_FOLDER);
+    public boolean isProfileInstalled(@NonNull final String profileName) {
+        return CodeStyleSchemes.getInstance().getAllSchemes().stream()
+                .anyMatch(s -> profileName.equals(s.getName()));
     }
 
     @NonNull
     @Override
-    public Optional<String> updateProfile(final @NonNull Path path, final Project project) throws IOException {
-        final CodeStyleSettingsManager settingsManager = CodeStyleSettingsManager.getInstance();
-        final CodeStyleSchemes codeStyleSchemes = CodeStyleSchemes.getInstance();
-        final String profileName = FileNameUtils.getBaseName(path.getFileName().toString());
-        final VirtualFile file = LocalFileSystem.getInstance().refreshAndFindFileByNioFile(path);
-        if (file == null) {
-            return Optional.empty();
-        }
-        file.refresh(false, false);
+    public ParsedProfile<CodeStyleSchemeImpl> parseProfile(@NonNull final String profileName, @NonNull final String fileName, @NonNull final byte[] content) throws IOException {
         try {
             final CodeStyleSchemeImpl newScheme = new CodeStyleSchemeImpl(profileName, false, null);
-            final CodeStyleSettings newSettings = new CodeStyleSettingsLoader().loadSettings(file);
+            // Load from the content we already read instead of going through the VFS, which also makes this safe to
+            // run off the EDT
+            final CodeStyleSettings newSettings = new CodeStyleSettingsLoader().loadSettings(new BinaryLightVirtualFile(fileName, content));
             newSettings.resetDeprecatedFields();
             newScheme.setCodeStyleSettings(newSettings);
-
-            final Optional<CodeStyleSchemeImpl> existingScheme = codeStyleSchemes.getAllSchemes().stream()
-                    .filter(s -> profileName.equals(s.getName()))
-                    .map(s -> (CodeStyleSchemeImpl) s)
-                    .findAny();
-
-            final String newDom = JDOMUtil.write(newScheme.writeScheme());
-            if (existingScheme.isEmpty() || !newDom.equals(JDOMUtil.write(existingScheme.get().writeScheme()))) {
-                codeStyleSchemes.addScheme(newScheme);
-                writeConfigFile(newDom, CODESTYLE_PROFILE_FOLDER, path.getFileName().toString());
-                settingsManager.notifyCodeStyleSettingsChanged();
-                return Optional.of(profileName);
-            }
+            return newParsedProfile(profileName, fileName, newScheme);
         } catch (final SchemeImportException e) {
-            throw new IOException(String.format("Failed to load codestyle profile %s: %s", path.getFileName(), e.getMessage()), e);
+            throw new IOException(String.format("Failed to load codestyle profile %s: %s", fileName, e.getMessage()), e);
         }
-        return Optional.empty();
+    }
+
+    @Nullable
+    @Override
+    protected CodeStyleSchemeImpl createPlaceholder(@NonNull final String profileName, @NonNull final String fileName, @NonNull final byte[] content, @NonNull final ProfileScan scan) {
+        // A placeholder is written back as its file, which would bring it back under the name in the file after a restart
+        if (scan.profileName() != null && !profileName.equals(scan.profileName())) {
+            return null;
+        }
+        // The settings are only built once the scheme is selected or shown in the settings dialog, until then the scheme
+        // writes the element of the data holder
+        final SchemeDataHolder<CodeStyleSchemeImpl> dataHolder = () -> {
+            try {
+                return JDOMUtil.load(new ByteArrayInputStream(content));
+            } catch (final IOException | JDOMException e) {
+                throw new IllegalStateException(String.format("Failed to load codestyle profile %s: %s", fileName, e.getMessage()), e);
+            }
+        };
+        return new CodeStyleSchemeImpl(profileName, (String) null, dataHolder);
+    }
+
+    @Nullable
+    @Override
+    public CodeStyleSchemeImpl getInstalledProfile(@NonNull final String profileName) {
+        return CodeStyleSchemes.getInstance().getAllSchemes().stream()
+                .filter(s -> profileName.equals(s.getName()))
+                .map(s -> (CodeStyleSchemeImpl) s)
+                .findAny()
+                .orElse(null);
+    }
+
+    @NonNull
+    @Override
+    public Element serializeProfile(@NonNull final CodeStyleSchemeImpl profile) {
+        return profile.writeScheme();
+    }
+
+    @Override
+    public void installProfile(@NonNull final ParsedProfile<CodeStyleSchemeImpl> profile) {
+        CodeStyleSchemes.getInstance().addScheme(profile.scheme());
+        CodeStyleSettingsManager.getInstance().notifyCodeStyleSettingsChanged();
     }
 
     private void setCodeStyleScheme(final CodeStyleScheme scheme, final Project project) {
@@ -3,26 +3,31 @@ package net.cicchiello.intellij.settingsshare.settings;
 import com.intellij.codeInspection.InspectionProfile;
 import com.intellij.codeInspection.ex.ApplicationInspectionProfileManager;
 import com.intellij.codeInspection.ex.InspectionProfileImpl;
+import com.intellij.codeInspection.ex.InspectionProfileLoadUtil;
+import com.intellij.codeInspection.ex.InspectionToolRegistrar;
 import com.intellij.openapi.Disposable;
+import com.intellij.openapi.options.SchemeDataHolder;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.JDOMUtil;
 import com.intellij.profile.ProfileChangeAdapter;
 import com.intellij.profile.codeInspection.ProjectInspectionProfileManager;
 import lombok.NonNull;
 import net.cicchiello.intellij.settingsshare.action.SettingChangedListener;
-import org.apache.commons.compress.utils.FileNameUtils;
+import net.cicchiello.intellij.settingsshare.service.ProfileScan;
+import org.jdom.Element;
 import org.jdom.JDOMException;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.nio.file.Path;
 import java.util.Optional;
 
-public class InspectionSyncedSetting extends ProfileSyncedSetting implements Disposable {
+public class InspectionSyncedSetting extends ProfileSyncedSetting<InspectionProfileImpl> implements Disposable {
 
     public static final String INSPECTION_PROFILE_FOLDER = "inspection";
     public static final String INSPECTION_SETTING_NAME = "Inspection";
+    private static final String PROFILE_ROOT_ELEMENT = "profile";
 
     @NonNull
     @Override
@@ -59,6 +64,7 @@ public class InspectionSyncedSetting extends ProfileSyncedSetting implements Dis
         project.getMessageBus().connect(this).subscribe(ProfileChangeAdapter.TOPIC, new ProfileChangeAdapter() {
             @Override
             public void profileChanged(@NotNull final InspectionProfile profile) {
+                invalidateInstalledDigests();
                 listener.settingChanged(InspectionSyncedSetting.this, project);
             }
 
@@ -69,36 +75,67 @@ public class InspectionSyncedSetting extends ProfileSyncedSetting implements Dis
         });
     }
 
-    @NonNull
     @Override
-    public Path getProfilePath(@NonNull final Path basePath) {
-        return basePath.resolve(INSPECTION_PROFILE_FOLDER);
+    public boolean isProfileInstalled(@NonNull final String profileName) {
+        return ApplicationInspectionProfileManager.getInstanceImpl().getProfile(profileName, false) != null;
     }
 
     @NonNull
     @Override
-    public Optional<String> updateProfile(@NonNull final Path path, @NonNull final Project project) throws IOException {
+    public ParsedProfile<InspectionProfileImpl> parseProfile(@NonNull final String profileName, @NonNull final String fileName, @NonNull final byte[] content) throws IOException {
         final ApplicationInspectionProfileManager profileManager = ApplicationInspectionProfileManager.getInstanceImpl();
         try {
-            final String profileName = FileNameUtils.getBaseName(path.getFileName().toString());
-            final InspectionProfileImpl newProfile = profileManager.loadProfile(path.toString());
-            if (newProfile == null) {
-                throw new IOException(String.format("Failed to load inspection profile %s: loadProfile returned null", path.getFileName()));
-            }
-            newProfile.setName(profileName);
-
-            final Optional<InspectionProfileImpl> existingProfile = Optional.ofNullable(profileManager.getProfile(profileName, false));
-            final String newDom = JDOMUtil.write(newProfile.writeScheme());
-            if (existingProfile.isEmpty() || !newDom.equals(JDOMUtil.write(existingProfile.get().writeScheme()))) {
-                existingProfile.ifPresent(profileManager::deleteProfile);
-                profileManager.addProfile(newProfile);
-                writeConfigFile(newDom, INSPECTION_PROFILE_FOLDER, path.getFileName().toString());
-                return Optional.of(profileName);
-            }
+            // Load from the content instead of a path since the file may only exist in the git object store
+            final InspectionProfileImpl newProfile = InspectionProfileLoadUtil.load(JDOMUtil.load(new ByteArrayInputStream(content)), profileName, InspectionToolRegistrar.getInstance(), profileManager);
+            return newParsedProfile(profileName, fileName, newProfile);
         } catch (final JDOMException e) {
-            throw new IOException(String.format("Failed to load inspection profile %s: %s", path.getFileName(), e.getMessage()), e);
+            throw new IOException(String.format("Failed to load inspection profile %s: %s", fileName, e.getMessage()), e);
+        }
+    }
+
+    @Nullable
+    @Override
+    protected InspectionProfileImpl createPlaceholder(@NonNull final String profileName, @NonNull final String fileName, @NonNull final byte[] content, @NonNull final ProfileScan scan) {
+        // A lazily loaded profile takes its name from the file, it can only be used when that matches the file name
+        if (scan.profileName() != null && !profileName.equals(scan.profileName())) {
+            return null;
+        }
+        // The profile manager reads the data holder the first time the tools of the profile are needed
+        final SchemeDataHolder<InspectionProfileImpl> dataHolder = () -> {
+            try {
+                return JDOMUtil.load(new ByteArrayInputStream(content));
+            } catch (final IOException | JDOMException e) {
+                throw new IllegalStateException(String.format("Failed to load inspection profile %s: %s", fileName, e.getMessage()), e);
+            }
+        };
+        return new InspectionProfileImpl(profileName, InspectionToolRegistrar.getInstance(), ApplicationInspectionProfileManager.getInstanceImpl(), dataHolder);
+    }
+
+    @Override
+    protected void validateScan(@NonNull final String fileName, @NonNull final ProfileScan scan) throws IOException {
+        if (!PROFILE_ROOT_ELEMENT.equals(scan.rootElement())) {
+            throw new IOException(String.format("Failed to load inspection profile %s: expected a <%s> element but found <%s>", fileName, PROFILE_ROOT_ELEMENT, scan.rootElement()));
         }
-        return Optional.empty();
+    }
+
+    @Nullable
+    @Override
+    public InspectionProfileImpl getInstalledProfile(@NonNull final String profileName) {
+        return ApplicationInspectionProfileManager.getInstanceImpl().getProfile(profileName, false);
+    }
+
+    @NonNull
+    @Override
+    public Element serializeProfile(@NonNull final InspectionProfileImpl profile) {
+        return profile.writeScheme();
+    }
+
+    @Override
+    public void installProfile(@NonNull final ParsedProfile<InspectionProfileImpl> profile) {
+        final ApplicationInspectionProfileManager profileManager = ApplicationInspectionProfileManager.getInstanceImpl();
+        Optional.ofNullable(profileManager.getProfile(profile.name(), false))
+                .ifPresent(profileManager::deleteProfile);
+        profileManager.addProfile(profile.scheme());
     }
 
     @Override
@@ -0,0 +1,7 @@
+package net.cicchiello.intellij.settingsshare.settings;
+
+import lombok.NonNull;
+
+// digest is the canonical element digest of the parsed scheme, see ContentDigest.elementDigest
+public record ParsedProfile<S>(@NonNull String name, @NonNull String fileName, @NonNull S scheme, @NonNull String digest) {
+}
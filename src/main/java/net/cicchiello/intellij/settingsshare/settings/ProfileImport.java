@@ -0,0 +1,26 @@
+package net.cicchiello.intellij.settingsshare.settings;
+
+import lombok.NonNull;
+import net.cicchiello.intellij.settingsshare.service.ConfigWriteBatch;
+
+import java.io.IOException;
+
+public interface ProfileImport {
+
+    @NonNull
+    SyncedSetting getSetting();
+
+    @NonNull
+    String getProfileName();
+
+    // Reads, parses and compares the profile with the installed one without modifying any IDE state so it can run on
+    // any background thread. Returns false if the installed profile is already up to date
+    boolean prepare() throws IOException;
+
+    // Installs the prepared profile into the IDE. Must be called on the EDT
+    void install();
+
+    // Adds the installed profile to the batch of files written to IntelliJ's config directory. Should be called off the
+    // EDT
+    void persist(@NonNull final ConfigWriteBatch batch);
+}
@@ -1,47 +1,58 @@
 package net.cicchiello.intellij.settingsshare.settings;
 
-import com.intellij.openapi.application.PathManager;
-import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.JDOMUtil;
 import lombok.NonNull;
+import net.cicchiello.intellij.settingsshare.diagnostics.ProfileImportEvent;
+import net.cicchiello.intellij.settingsshare.service.ConfigWriteBatch;
+import net.cicchiello.intellij.settingsshare.service.ContentDigest;
+import net.cicchiello.intellij.settingsshare.service.EnforcementRules;
+import net.cicchiello.intellij.settingsshare.service.ProfileIndexService;
+import net.cicchiello.intellij.settingsshare.service.ProfileScan;
+import net.cicchiello.intellij.settingsshare.service.ProfileScanner;
+import net.cicchiello.intellij.settingsshare.service.ProfileSource;
+import net.cicchiello.intellij.settingsshare.service.SyncMetrics;
+import net.cicchiello.intellij.settingsshare.service.SyncPhase;
+import org.apache.commons.compress.utils.FileNameUtils;
+import org.jdom.Element;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.util.ArrayList;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
 import java.util.List;
 import java.util.Optional;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
-public abstract class ProfileSyncedSetting implements SyncedSetting {
+public abstract class ProfileSyncedSetting<S> implements SyncedSetting {
 
     public static final String DEFAULT_PROFILE_FILE = "Default.xml";
 
-    public static void writeConfigFile(final String data, final String folder, final String filename) throws IOException {
-        final String configDir = PathManager.getConfigPath();
-        final Path configPath = Path.of(configDir, folder);
-        if (!Files.exists(configPath)) {
-            Files.createDirectory(configPath);
-        }
-        final Path fullPath = configPath.resolve(filename);
-        try (final OutputStreamWriter writer = new OutputStreamWriter(Files.newOutputStream(fullPath))) {
-            writer.write(data);
-        }
+    // Digests of installed profiles by name. Only valid while the same scheme instance is installed and no change
+    // event was received for it
+    private final Map<String, InstalledDigest> installedDigests = new ConcurrentHashMap<>();
+    // Placeholders installed by this session by name, with the blob hash of the file they were created from. Once the
+    // IDE loads a placeholder it serializes differently than its file, so it's matched by the file instead
+    private final Map<String, PlaceholderSource> placeholders = new ConcurrentHashMap<>();
+
+    @NonNull
+    @Override
+    public List<ProfileImport> prepareImports(@NonNull final ProfileSource source, @NonNull final EnforcementRules rules, @Nullable final Set<String> changedFiles, final boolean force) throws IOException {
+        // Only the enforced profile is certain to be used, every other one is installed as a placeholder if possible
+        final Optional<String> enforcedProfile = rules.getEnforcedProfile(getConfigName());
+        return source.listFiles(getConfigName()).stream()
+                .filter(fileName -> !getDefaultProfileFileName().equals(fileName))
+                .filter(fileName -> changedFiles == null || changedFiles.contains(getIndexKey(fileName)))
+                .map(fileName -> (ProfileImport) new FileProfileImport(source, fileName, enforcedProfile.filter(getProfileName(fileName)::equals).isEmpty(), force))
+                .toList();
     }
 
+    @NonNull
     @Override
-    public List<String> updateProfilesFromPath(final @NonNull Path path, final @NonNull Project project) throws IOException {
-        final List<Path> toImport = listProfiles(getProfilePath(path));
-        if (toImport.isEmpty()) {
-            return List.of();
-        }
-        final ArrayList<String> updatedProfiles = new ArrayList<>();
-        for (final Path profilePath : toImport) {
-            updateProfile(profilePath, project)
-                    .ifPresent(updatedProfiles::add);
-        }
-        return updatedProfiles;
+    public List<String> getRepositoryPaths() {
+        return List.of(getConfigName() + "/");
     }
 
     @NonNull
@@ -50,20 +61,239 @@ public abstract class ProfileSyncedSetting implements SyncedSetting {
     }
 
     @NonNull
-    public abstract Path getProfilePath(@NonNull final Path basePath);
+    public String getProfileName(@NonNull final String fileName) {
+        return FileNameUtils.getBaseName(fileName);
+    }
+
+    public abstract boolean isProfileInstalled(@NonNull final String profileName);
 
+    // Must be safe to call from any thread, the result is only installed by installProfile
     @NonNull
-    public abstract Optional<String> updateProfile(@NonNull final Path profileFile, @NonNull final Project project) throws IOException;
+    public abstract ParsedProfile<S> parseProfile(@NonNull final String profileName, @NonNull final String fileName, @NonNull final byte[] content) throws IOException;
+
+    // Called from a background thread
+    @Nullable
+    public abstract S getInstalledProfile(@NonNull final String profileName);
+
+    @NonNull
+    public abstract Element serializeProfile(@NonNull final S profile);
+
+    // Called from a background thread
+    public boolean isProfileUpToDate(@NonNull final ParsedProfile<S> profile) {
+        return profile.digest().equals(getInstalledProfileDigest(profile.name()));
+    }
 
-    private List<Path> listProfiles(final Path path) throws IOException {
-        if (!Files.isDirectory(path)) {
-            return List.of();
+    @Nullable
+    public String getInstalledProfileDigest(@NonNull final String profileName) {
+        final S installed = getInstalledProfile(profileName);
+        if (installed == null) {
+            return null;
         }
-        try (final Stream<Path> stream = Files.list(path)) {
-            return stream
-                    .filter(Files::isRegularFile)
-                    .filter(p -> !getDefaultProfileFileName().equals(p.getFileName().toString()))
-                    .collect(Collectors.toList());
+        final InstalledDigest cached = installedDigests.get(profileName);
+        if (cached != null && cached.profile().get() == installed) {
+            return cached.digest();
+        }
+        final String digest = ContentDigest.elementDigest(serializeProfile(installed));
+        installedDigests.put(profileName, new InstalledDigest(new WeakReference<>(installed), digest));
+        return digest;
+    }
+
+    // Must be called whenever an installed profile may have been modified in place
+    protected void invalidateInstalledDigests() {
+        installedDigests.clear();
+    }
+
+    @NonNull
+    protected ParsedProfile<S> newParsedProfile(@NonNull final String profileName, @NonNull final String fileName, @NonNull final S profile) {
+        return new ParsedProfile<>(profileName, fileName, profile, ContentDigest.elementDigest(serializeProfile(profile)));
+    }
+
+    // Streams through the file to validate it and compute the digest its parsed profile would most likely have, without
+    // the cost of actually loading it
+    @NonNull
+    public ProfileScan scanProfile(@NonNull final String fileName, @NonNull final byte[] content) throws IOException {
+        final ProfileScan scan;
+        try (final InputStream is = new ByteArrayInputStream(content)) {
+            scan = ProfileScanner.scan(is);
+        } catch (final IOException e) {
+            throw new IOException(String.format("Failed to read %s profile %s: %s", getHumanName(), fileName, e.getMessage()), e);
+        }
+        validateScan(fileName, scan);
+        return scan;
+    }
+
+    // A scheme that only parses the file once the IDE actually needs it. writeScheme of a placeholder has to return the
+    // file as it is until then. Returns null if the setting can't load this profile lazily
+    @Nullable
+    protected S createPlaceholder(@NonNull final String profileName, @NonNull final String fileName, @NonNull final byte[] content, @NonNull final ProfileScan scan) {
+        return null;
+    }
+
+    // Lets a setting reject files that are well-formed but can't be one of its profiles
+    protected void validateScan(@NonNull final String fileName, @NonNull final ProfileScan scan) throws IOException {
+    }
+
+    // Called on the EDT
+    public abstract void installProfile(@NonNull final ParsedProfile<S> profile);
+
+    private String getIndexKey(final String fileName) {
+        return getConfigName() + "/" + fileName;
+    }
+
+    private void commitImportEvent(final ProfileImportEvent event, final String file, @Nullable final byte[] content, final boolean parsed, final String outcome) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.setting = getHumanName();
+            event.file = file;
+            event.size = content == null ? -1 : content.length;
+            event.parsed = parsed;
+            event.outcome = outcome;
+            event.commit();
+        }
+    }
+
+    private boolean isInstalledPlaceholder(final String profileName, final String fileDigest) {
+        final PlaceholderSource placeholder = placeholders.get(profileName);
+        final S installed = getInstalledProfile(profileName);
+        return placeholder != null && installed != null && placeholder.scheme().get() == installed && placeholder.fileDigest().equals(fileDigest);
+    }
+
+    private record InstalledDigest(WeakReference<Object> profile, String digest) {
+    }
+
+    private record PlaceholderSource(WeakReference<Object> scheme, String fileDigest) {
+    }
+
+    private final class FileProfileImport implements ProfileImport {
+
+        private final ProfileSource source;
+        private final String fileName;
+        private final boolean lazy;
+        private final boolean force;
+        private String digest;
+        private ParsedProfile<S> parsed;
+        private boolean placeholder;
+
+        private FileProfileImport(final ProfileSource source, final String fileName, final boolean lazy, final boolean force) {
+            this.source = source;
+            this.fileName = fileName;
+            this.lazy = lazy;
+            this.force = force;
+        }
+
+        @NonNull
+        @Override
+        public SyncedSetting getSetting() {
+            return ProfileSyncedSetting.this;
+        }
+
+        @NonNull
+        @Override
+        public String getProfileName() {
+            return ProfileSyncedSetting.this.getProfileName(fileName);
+        }
+
+        @Override
+        public boolean prepare() throws IOException {
+            final ProfileImportEvent event = new ProfileImportEvent();
+            event.begin();
+            final ProfileIndexService index = ProfileIndexService.getInstance();
+            final String indexKey = getIndexKey(fileName);
+            final String profileName = getProfileName();
+            // Reading from the object store gives us the blob id, which is the same digest, without reading the file
+            byte[] content = null;
+            final Optional<String> blobId = source.getBlobId(indexKey);
+            if (blobId.isPresent()) {
+                digest = blobId.get();
+            } else {
+                content = source.readFile(indexKey);
+                digest = ContentDigest.gitBlobHash(content);
+            }
+            // Unchanged files don't need to be parsed as long as the profile we imported last time is still there.
+            // A forced update still compares the content since the installed profile may have been modified locally
+            if (!force && index.isUpToDate(indexKey, digest, profileName) && isProfileInstalled(profileName)) {
+                commitImportEvent(event, indexKey, content, false, ProfileImportEvent.OUTCOME_UNCHANGED_FILE);
+                return false;
+            }
+            // A placeholder is left alone until its file changes, even if it was loaded and no longer matches the file.
+            // Replacing it would take it away from a Settings dialog that is showing it
+            if (lazy && isInstalledPlaceholder(profileName, digest)) {
+                index.recordImport(indexKey, digest, profileName, null);
+                commitImportEvent(event, indexKey, content, false, ProfileImportEvent.OUTCOME_UNCHANGED_PLACEHOLDER);
+                return false;
+            }
+            // The index has the canonical digest of files that were scanned before, comparing that with the installed
+            // profile avoids reading the file again when nothing changed
+            final SyncMetrics metrics = SyncMetrics.getInstance();
+            final Optional<String> canonicalDigest = index.getCanonicalDigest(indexKey, digest);
+            if (canonicalDigest.isPresent() && isInstalledDigest(metrics, profileName, canonicalDigest.get())) {
+                index.recordImport(indexKey, digest, profileName, canonicalDigest.get());
+                commitImportEvent(event, indexKey, content, false, ProfileImportEvent.OUTCOME_UNCHANGED_CANONICAL);
+                return false;
+            }
+            if (content == null) {
+                content = source.readFile(indexKey);
+            }
+            // Loading a profile builds its whole DOM and every tool it configures. The scan only keeps the element it
+            // is looking at, so new or locally modified profiles whose file matches what is installed never get loaded
+            final ProfileScan scan;
+            try (final SyncMetrics.Timer ignored = metrics.start(SyncPhase.PRE_SCAN)) {
+                scan = scanProfile(fileName, content);
+            }
+            if (isInstalledDigest(metrics, profileName, scan.digest())) {
+                index.recordImport(indexKey, digest, profileName, scan.digest());
+                commitImportEvent(event, indexKey, content, false, ProfileImportEvent.OUTCOME_UNCHANGED_SCAN);
+                return false;
+            }
+            // The file differs from what is installed, a profile that isn't enforced is replaced with a placeholder
+            // that keeps the content until the profile is selected
+            final S lazyScheme = lazy ? createPlaceholder(profileName, fileName, content, scan) : null;
+            if (lazyScheme != null) {
+                parsed = new ParsedProfile<>(profileName, fileName, lazyScheme, scan.digest());
+                placeholder = true;
+                commitImportEvent(event, indexKey, content, false, ProfileImportEvent.OUTCOME_PLACEHOLDER);
+                return true;
+            }
+            try (final SyncMetrics.Timer ignored = metrics.start(SyncPhase.PARSE)) {
+                parsed = parseProfile(profileName, fileName, content);
+            }
+            final boolean upToDate;
+            try (final SyncMetrics.Timer ignored = metrics.start(SyncPhase.COMPARE)) {
+                upToDate = isProfileUpToDate(parsed);
+            }
+            if (upToDate) {
+                index.recordImport(indexKey, digest, profileName, parsed.digest());
+                commitImportEvent(event, indexKey, content, true, ProfileImportEvent.OUTCOME_UP_TO_DATE);
+                return false;
+            }
+            commitImportEvent(event, indexKey, content, true, ProfileImportEvent.OUTCOME_CHANGED);
+            return true;
+        }
+
+        private boolean isInstalledDigest(final SyncMetrics metrics, final String profileName, final String digest) {
+            try (final SyncMetrics.Timer ignored = metrics.start(SyncPhase.COMPARE)) {
+                return digest.equals(getInstalledProfileDigest(profileName));
+            }
+        }
+
+        @Override
+        public void install() {
+            final ProfileImportEvent event = new ProfileImportEvent();
+            event.begin();
+            installProfile(parsed);
+            commitImportEvent(event, getIndexKey(fileName), null, !placeholder, ProfileImportEvent.OUTCOME_INSTALLED);
+            if (placeholder) {
+                placeholders.put(parsed.name(), new PlaceholderSource(new WeakReference<>(parsed.scheme()), digest));
+            } else {
+                placeholders.remove(parsed.name());
+            }
+        }
+
+        @Override
+        public void persist(@NonNull final ConfigWriteBatch batch) {
+            // Only profiles that changed get this far, so this is the only place the full XML is written out
+            batch.write(getConfigName(), parsed.fileName(), JDOMUtil.write(serializeProfile(parsed.scheme())));
+            batch.afterCommit(() -> ProfileIndexService.getInstance().recordImport(getIndexKey(fileName), digest, parsed.name(), parsed.digest()));
         }
     }
 
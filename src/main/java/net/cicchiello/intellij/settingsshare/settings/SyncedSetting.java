@@ -4,11 +4,15 @@ import com.intellij.openapi.Disposable;
 import com.intellij.openapi.project.Project;
 import lombok.NonNull;
 import net.cicchiello.intellij.settingsshare.action.SettingChangedListener;
+import net.cicchiello.intellij.settingsshare.service.EnforcementRules;
+import net.cicchiello.intellij.settingsshare.service.ProfileSource;
+
+import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
-import java.nio.file.Path;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 
 public interface SyncedSetting extends Disposable {
 
@@ -24,7 +28,12 @@ public interface SyncedSetting extends Disposable {
     void addSettingChangedListener(@NonNull final Project project, @NonNull final SettingChangedListener listener);
 
     @NonNull
-    default List<String> updateProfilesFromPath(@NonNull final Path path, @NonNull final Project project) throws IOException {
+    default List<String> getRepositoryPaths() {
+        return List.of();
+    }
+
+    @NonNull
+    default List<ProfileImport> prepareImports(@NonNull final ProfileSource source, @NonNull final EnforcementRules rules, @Nullable final Set<String> changedFiles, final boolean force) throws IOException {
         return List.of();
     }
 